@@ -0,0 +1,14 @@
+package io.cloudtrust.keycloak.config;
+
+import org.keycloak.testframework.server.KeycloakServerConfigBuilder;
+
+/**
+ * Server counting the users of a page with a dedicated statement
+ */
+public class CountThenPageServerConfig extends ServerConfig {
+    @Override
+    public KeycloakServerConfigBuilder configure(KeycloakServerConfigBuilder keycloakServerConfigBuilder) {
+        return super.configure(keycloakServerConfigBuilder)
+                .option("spi-realm-restapi-extension-api-users-windowed-count-enabled", "false");
+    }
+}
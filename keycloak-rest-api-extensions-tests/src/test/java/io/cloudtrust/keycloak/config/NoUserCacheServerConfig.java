@@ -0,0 +1,14 @@
+package io.cloudtrust.keycloak.config;
+
+import org.keycloak.testframework.server.KeycloakServerConfigBuilder;
+
+/**
+ * Server without user cache: the users of a page are materialized directly from the entities loaded by the search
+ */
+public class NoUserCacheServerConfig extends ServerConfig {
+    @Override
+    public KeycloakServerConfigBuilder configure(KeycloakServerConfigBuilder keycloakServerConfigBuilder) {
+        return super.configure(keycloakServerConfigBuilder)
+                .option("spi-user-cache-default-enabled", "false");
+    }
+}
@@ -0,0 +1,14 @@
+package io.cloudtrust.keycloak.config;
+
+import org.keycloak.testframework.server.KeycloakServerConfigBuilder;
+
+/**
+ * Server with the users search index enabled
+ */
+public class SearchIndexServerConfig extends ServerConfig {
+    @Override
+    public KeycloakServerConfigBuilder configure(KeycloakServerConfigBuilder keycloakServerConfigBuilder) {
+        return super.configure(keycloakServerConfigBuilder)
+                .option("spi-realm-restapi-extension-api-users-search-index-enabled", "true");
+    }
+}
@@ -0,0 +1,78 @@
+package io.cloudtrust.keycloak.services.api.admin;
+
+import io.cloudtrust.keycloak.AbstractRestApiExtensionTest;
+import io.cloudtrust.keycloak.representations.idm.UsersPageRepresentation;
+import jakarta.ws.rs.core.Response;
+import org.apache.http.NameValuePair;
+import org.apache.http.message.BasicNameValuePair;
+import org.jboss.logging.Logger;
+import org.junit.jupiter.api.Test;
+import org.keycloak.admin.client.resource.UsersResource;
+import org.keycloak.representations.idm.UserRepresentation;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+/**
+ * Measures the users page of the extension, with its total count. The subclasses run it against servers counting the
+ * users with a windowed count or with a dedicated statement, with or without user cache: durations are logged to be
+ * compared, not asserted.
+ * Seeding the realm takes time: run them with -Dbenchmark=true
+ */
+abstract class AbstractGetUsersBenchmark extends AbstractRestApiExtensionTest {
+    private static final Logger logger = Logger.getLogger(AbstractGetUsersBenchmark.class);
+    private static final int SEEDED_USERS = 2000;
+    private static final int WARMUP = 20;
+    private static final int ITERATIONS = 100;
+    private static final String SEARCH = "bench";
+
+    /**
+     * @return how the server counts and materializes the users, for the logs
+     */
+    protected abstract String getSetup();
+
+    @Test
+    void measureUsersPage() throws IOException, URISyntaxException {
+        UsersResource users = testRealm.admin().users();
+        seed(users);
+        try {
+            List<NameValuePair> nvps = List.of(
+                    new BasicNameValuePair("search", SEARCH),
+                    new BasicNameValuePair("first", "1000"),
+                    new BasicNameValuePair("max", "20"));
+            String path = "/realms/master/api/admin/realms/test/users";
+            var page = this.api(keycloak, testRealm).query(UsersPageRepresentation.class, "GET", path, nvps);
+            assertThat(page.getCount(), is(SEEDED_USERS));
+
+            for (int i = 0; i < WARMUP; i++) {
+                this.api(keycloak, testRealm).query(UsersPageRepresentation.class, "GET", path, nvps);
+            }
+
+            long start = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++) {
+                this.api(keycloak, testRealm).query(UsersPageRepresentation.class, "GET", path, nvps);
+            }
+            long duration = (System.nanoTime() - start) / ITERATIONS;
+
+            logger.infof("Users page of %d seeded users, %s: %d µs", SEEDED_USERS, getSetup(), duration / 1000);
+        } finally {
+            users.search(SEARCH, 0, SEEDED_USERS).forEach(u -> users.delete(u.getId()).close());
+        }
+    }
+
+    private void seed(UsersResource users) {
+        for (int i = 0; i < SEEDED_USERS; i++) {
+            UserRepresentation user = new UserRepresentation();
+            user.setUsername(String.format("%s-%05d", SEARCH, i));
+            user.setEmail(String.format("%s-%05d@localhost", SEARCH, i));
+            user.setEnabled(true);
+            try (Response response = users.create(user)) {
+                assertThat(response.getStatus(), is(201));
+            }
+        }
+    }
+}
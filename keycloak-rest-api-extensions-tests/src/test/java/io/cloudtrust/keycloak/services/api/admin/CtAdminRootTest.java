@@ -4,6 +4,7 @@ import com.fasterxml.jackson.core.type.TypeReference;
 import io.cloudtrust.keycloak.AbstractRestApiExtensionTest;
 import io.cloudtrust.keycloak.config.ServerConfig;
 import io.cloudtrust.keycloak.representations.idm.DeletableUserRepresentation;
+import io.cloudtrust.keycloak.representations.idm.RealmStatisticsRepresentation;
 import io.cloudtrust.keycloak.services.resource.api.model.EmailInfo;
 import org.apache.http.NameValuePair;
 import org.apache.http.message.BasicNameValuePair;
@@ -16,8 +17,12 @@ import java.net.URISyntaxException;
 import java.time.Duration;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.hasKey;
 import static org.hamcrest.Matchers.is;
 
 @KeycloakIntegrationTest(config = ServerConfig.class)
@@ -26,6 +31,8 @@ class CtAdminRootTest extends AbstractRestApiExtensionTest {
     };
     private static final TypeReference<List<EmailInfo>> emailInfoListType = new TypeReference<>() {
     };
+    private static final TypeReference<Map<String, RealmStatisticsRepresentation>> realmsStatisticsType = new TypeReference<>() {
+    };
 
     @BeforeEach
     public void initToken() {
@@ -57,4 +64,23 @@ class CtAdminRootTest extends AbstractRestApiExtensionTest {
         assertThat(testStart<found.getCreationDate(), is(true));
         assertThat(found.getCreationDate()-testStart< Duration.ofSeconds(10).toMillis(), is(true));
     }
+
+    @Test
+    void testGetRealmsStatistics() throws IOException, URISyntaxException {
+        List<NameValuePair> params = List.of(new BasicNameValuePair("realm", "test"), new BasicNameValuePair("realm", "master"),
+                new BasicNameValuePair("realm", "unknown"));
+        var statistics = api(keycloak, testRealm).query(realmsStatisticsType, "GET", "/realms/master/api/admin/statistics", params);
+        assertThat(statistics.keySet(), contains("master", "test"));
+        RealmStatisticsRepresentation test = statistics.get("test");
+        assertThat(test.getUsers().getTotal(), is(greaterThan(0L)));
+        assertThat(test.getCredentials(), hasKey("password"));
+
+        statistics = api(keycloak, testRealm).query(realmsStatisticsType, "GET", "/realms/master/api/admin/statistics", List.of());
+        assertThat(statistics, hasKey("test"));
+
+        // Only unknown realms
+        statistics = api(keycloak, testRealm).query(realmsStatisticsType, "GET", "/realms/master/api/admin/statistics",
+                List.of(new BasicNameValuePair("realm", "unknown")));
+        assertThat(statistics.isEmpty(), is(true));
+    }
 }
@@ -2,15 +2,22 @@ package io.cloudtrust.keycloak.services.api.admin;
 
 import io.cloudtrust.keycloak.AbstractRestApiExtensionTest;
 import io.cloudtrust.keycloak.config.ServerConfig;
+import io.cloudtrust.keycloak.representations.idm.UsersLookupResultRepresentation;
 import io.cloudtrust.keycloak.representations.idm.UsersPageRepresentation;
+import jakarta.ws.rs.core.Response;
 import org.apache.http.NameValuePair;
 import org.apache.http.message.BasicNameValuePair;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.Arguments;
 import org.junit.jupiter.params.provider.MethodSource;
+import org.keycloak.admin.client.resource.UserProfileResource;
+import org.keycloak.admin.client.resource.UserResource;
+import org.keycloak.representations.idm.GroupRepresentation;
 import org.keycloak.representations.idm.UserRepresentation;
+import org.keycloak.representations.userprofile.config.UPConfig;
 import org.keycloak.testframework.annotations.KeycloakIntegrationTest;
+import org.keycloak.util.JsonSerialization;
 
 import java.io.IOException;
 import java.net.URISyntaxException;
@@ -18,14 +25,23 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.arrayContaining;
 import static org.hamcrest.Matchers.arrayContainingInAnyOrder;
 import static org.hamcrest.Matchers.arrayWithSize;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.hasItem;
 import static org.hamcrest.Matchers.is;
 import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
 
 @KeycloakIntegrationTest(config = ServerConfig.class)
 class CtUsersResourceTest extends AbstractRestApiExtensionTest {
@@ -77,6 +93,151 @@ class CtUsersResourceTest extends AbstractRestApiExtensionTest {
         assertThat(page.getCount(), is(8));
     }
 
+    @Test
+    void testCursorPaginatedGetUsers() throws IOException, URISyntaxException {
+        List<String> usernames = new ArrayList<>();
+        List<NameValuePair> nvps = List.of(new BasicNameValuePair("max", "3"));
+        var page = this.api(keycloak, testRealm).query(UsersPageRepresentation.class, getMethod, "/realms/master/api/admin/realms/test/users", nvps);
+        Arrays.stream(grabUsers(page)).map(UserRepresentation::getUsername).forEach(usernames::add);
+        assertThat(page.getNext(), notNullValue());
+
+        while (page.getNext() != null) {
+            nvps = List.of(
+                    new BasicNameValuePair("max", "3"),
+                    new BasicNameValuePair("after", page.getNext()));
+            page = this.api(keycloak, testRealm).query(UsersPageRepresentation.class, getMethod, "/realms/master/api/admin/realms/test/users", nvps);
+            Arrays.stream(grabUsers(page)).map(UserRepresentation::getUsername).forEach(usernames::add);
+            assertThat(page.getCount(), is(8));
+        }
+
+        assertThat(usernames.toArray(), arrayContaining("john-doh@localhost", "keycloak-user@localhost", "level2groupuser",
+                "non-duplicate-email-user", "rolerichuser", "test-user@localhost", "topgroupuser", "topgroupuser2"));
+    }
+
+    @Test
+    void testCursorPaginatedGetUsersByEmail() throws IOException, URISyntaxException {
+        List<NameValuePair> nvps = List.of(
+                new BasicNameValuePair("max", "2"),
+                new BasicNameValuePair("sort", "email"));
+        var page = this.api(keycloak, testRealm).query(UsersPageRepresentation.class, getMethod, "/realms/master/api/admin/realms/test/users", nvps);
+        assertThat(Arrays.stream(grabUsers(page)).map(UserRepresentation::getEmail).toArray(), arrayContaining("john-doh@localhost", "keycloak-user@localhost"));
+
+        nvps = List.of(
+                new BasicNameValuePair("max", "2"),
+                new BasicNameValuePair("sort", "email"),
+                new BasicNameValuePair("after", page.getNext()));
+        page = this.api(keycloak, testRealm).query(UsersPageRepresentation.class, getMethod, "/realms/master/api/admin/realms/test/users", nvps);
+        assertThat(Arrays.stream(grabUsers(page)).map(UserRepresentation::getEmail).toArray(), arrayContaining("level2@redhat.com", "non-duplicate-email-user@localhost"));
+    }
+
+    @Test
+    void testGetUsersWithStateFilters() throws IOException, URISyntaxException {
+        int total = countUsers(List.of());
+        assertThat(countUsers(List.of(new BasicNameValuePair("createdAfter", "2999-01-01"))), is(0));
+        assertThat(countUsers(List.of(new BasicNameValuePair("createdBefore", "2999-01-01T00:00:00Z"))), is(total));
+        assertThat(countUsers(List.of(new BasicNameValuePair("credentialType", "password")))
+                + countUsers(List.of(new BasicNameValuePair("missingCredentialType", "password"))), is(total));
+
+        UserResource user = testRealm.admin().users().get(testRealm.admin().users().search("john-doh@localhost", true).getFirst().getId());
+        UserRepresentation rep = user.toRepresentation();
+        rep.setRequiredActions(List.of("CONFIGURE_TOTP"));
+        user.update(rep);
+        try {
+            List<NameValuePair> nvps = List.of(new BasicNameValuePair("requiredAction", "CONFIGURE_TOTP"));
+            var page = this.api(keycloak, testRealm).query(UsersPageRepresentation.class, getMethod, "/realms/master/api/admin/realms/test/users", nvps);
+            assertThat(Arrays.stream(grabUsers(page)).map(UserRepresentation::getUsername).toArray(), arrayContaining("john-doh@localhost"));
+            assertThat(page.getCount(), is(1));
+        } finally {
+            rep.setRequiredActions(List.of());
+            user.update(rep);
+        }
+    }
+
+    private int countUsers(List<NameValuePair> nvps) throws IOException, URISyntaxException {
+        return this.api(keycloak, testRealm).query(UsersPageRepresentation.class, getMethod, "/realms/master/api/admin/realms/test/users", nvps).getCount();
+    }
+
+    @Test
+    void testGetUsersWithFacets() throws IOException, URISyntaxException {
+        String userId = testRealm.admin().users().search("topgroupuser2", true).getFirst().getId();
+        UserResource user = testRealm.admin().users().get(userId);
+        UserRepresentation rep = user.toRepresentation();
+        rep.setEnabled(false);
+        user.update(rep);
+        try {
+            List<NameValuePair> nvps = List.of(
+                    new BasicNameValuePair("groupId", findGroupId("topGroup")),
+                    new BasicNameValuePair("includeSubgroups", "true"),
+                    new BasicNameValuePair("facets", "enabled,emailVerified,idpAlias"));
+            var page = this.api(keycloak, testRealm).query(UsersPageRepresentation.class, getMethod, "/realms/master/api/admin/realms/test/users", nvps);
+            assertThat(page.getCount(), is(3));
+            assertThat(page.getFacets().get("enabled"), is(Map.of("true", 2L, "false", 1L)));
+            assertThat(page.getFacets().get("emailVerified").values().stream().mapToLong(Long::longValue).sum(), is(3L));
+            assertThat(page.getFacets().get("idpAlias"), is(Map.of()));
+        } finally {
+            rep.setEnabled(true);
+            user.update(rep);
+        }
+    }
+
+    @Test
+    void testGetUsersWithoutCount() throws IOException, URISyntaxException {
+        List<NameValuePair> nvps = List.of(
+                new BasicNameValuePair("first", "4"),
+                new BasicNameValuePair("max", "2"),
+                new BasicNameValuePair("countMode", "none"));
+        var page = this.api(keycloak, testRealm).query(UsersPageRepresentation.class, getMethod, "/realms/master/api/admin/realms/test/users", nvps);
+        assertThat(Arrays.stream(grabUsers(page)).map(UserRepresentation::getUsername).toArray(), arrayContaining("rolerichuser", "test-user@localhost"));
+        assertThat(page.getCount(), nullValue());
+        assertThat(page.getHasMore(), is(true));
+
+        nvps = List.of(
+                new BasicNameValuePair("first", "6"),
+                new BasicNameValuePair("max", "2"),
+                new BasicNameValuePair("countMode", "none"));
+        page = this.api(keycloak, testRealm).query(UsersPageRepresentation.class, getMethod, "/realms/master/api/admin/realms/test/users", nvps);
+        assertThat(Arrays.stream(grabUsers(page)).map(UserRepresentation::getUsername).toArray(), arrayContaining("topgroupuser", "topgroupuser2"));
+        assertThat(page.getHasMore(), is(false));
+        assertThat(page.getNext(), nullValue());
+    }
+
+    @Test
+    void testGetUsersWithCachedCount() throws IOException, URISyntaxException {
+        List<NameValuePair> nvps = List.of(
+                new BasicNameValuePair("search", "topgroupuser"),
+                new BasicNameValuePair("countMode", "cached"));
+        for (int i = 0; i < 2; i++) {
+            var page = this.api(keycloak, testRealm).query(UsersPageRepresentation.class, getMethod, "/realms/master/api/admin/realms/test/users", nvps);
+            assertThat(grabUsers(page), arrayWithSize(2));
+            assertThat(page.getCount(), is(2));
+        }
+    }
+
+    @Test
+    void testCachedCountIsInvalidatedByUserChanges() throws IOException, URISyntaxException {
+        List<NameValuePair> nvps = List.of(
+                new BasicNameValuePair("search", "topgroupuser"),
+                new BasicNameValuePair("countMode", "cached"));
+        String path = "/realms/master/api/admin/realms/test/users";
+        assertThat(this.api(keycloak, testRealm).query(UsersPageRepresentation.class, getMethod, path, nvps).getCount(), is(2));
+
+        UserRepresentation user = new UserRepresentation();
+        user.setUsername("topgroupuser3");
+        user.setEnabled(true);
+        String id;
+        try (Response response = testRealm.admin().users().create(user)) {
+            assertThat(response.getStatus(), is(201));
+            String location = response.getLocation().getPath();
+            id = location.substring(location.lastIndexOf('/') + 1);
+        }
+        try {
+            assertThat(this.api(keycloak, testRealm).query(UsersPageRepresentation.class, getMethod, path, nvps).getCount(), is(3));
+        } finally {
+            testRealm.admin().users().delete(id).close();
+        }
+        assertThat(this.api(keycloak, testRealm).query(UsersPageRepresentation.class, getMethod, path, nvps).getCount(), is(2));
+    }
+
     @Test
     void testStandardGetUser() throws IOException, URISyntaxException {
         List<NameValuePair> nvps = Collections.singletonList(new BasicNameValuePair("username", "rolerichuser"));
@@ -142,6 +303,61 @@ class CtUsersResourceTest extends AbstractRestApiExtensionTest {
         assertThat(page.getCount(), is(3));
     }
 
+    @Test
+    void testGetUsersWithGroupPaths() throws IOException, URISyntaxException {
+        var roleRichGroupId = findGroupId("roleRichGroup");
+        var subGroup = testRealm.admin().groups().group(roleRichGroupId).getSubGroups("level2group", true, 0, 100, false).getFirst();
+        List<NameValuePair> nvps = List.of(
+                new BasicNameValuePair("groupId", subGroup.getId()),
+                new BasicNameValuePair("groupId", findGroupId("topGroup")),
+                new BasicNameValuePair("includeGroups", "true"));
+        var users = grabUsers(this.api(keycloak, testRealm).query(UsersPageRepresentation.class, getMethod, "/realms/master/api/admin/realms/test/users", nvps));
+        assertThat(users, arrayWithSize(3));
+        for (UserRepresentation user : users) {
+            assertThat(user.getGroups(), hasItem("rolerichuser".equals(user.getUsername()) ? "/roleRichGroup/level2group" : "/topGroup"));
+        }
+
+        // Without includeGroups, the groups are not returned
+        users = grabUsers(this.api(keycloak, testRealm).query(UsersPageRepresentation.class, getMethod, "/realms/master/api/admin/realms/test/users", nvps.subList(0, 2)));
+        assertThat(Arrays.stream(users).map(UserRepresentation::getGroups).filter(Objects::nonNull).toList(), empty());
+    }
+
+    @Test
+    void testGetUsersWithSubgroups() throws IOException, URISyntaxException {
+        assertGroupSubtreeMembers(findGroupId("topGroup"), "topgroupuser", "topgroupuser2", "level2groupuser");
+
+        String roleRichGroupId = findGroupId("roleRichGroup");
+        assertGroupSubtreeMembers(roleRichGroupId, "rolerichuser");
+
+        // The cached hierarchy is refreshed when a subgroup is created
+        var level2group2 = testRealm.admin().groups().group(roleRichGroupId).getSubGroups("level2group2", true, 0, 100, false).getFirst();
+        GroupRepresentation level3group = new GroupRepresentation();
+        level3group.setName("level3group");
+        String level3groupId;
+        try (Response response = testRealm.admin().groups().group(level2group2.getId()).subGroup(level3group)) {
+            assertThat(response.getStatus(), is(201));
+            String location = response.getLocation().getPath();
+            level3groupId = location.substring(location.lastIndexOf('/') + 1);
+        }
+        try {
+            String userId = testRealm.admin().users().search("john-doh@localhost", true).getFirst().getId();
+            testRealm.admin().users().get(userId).joinGroup(level3groupId);
+            assertGroupSubtreeMembers(roleRichGroupId, "rolerichuser", "john-doh@localhost");
+        } finally {
+            testRealm.admin().groups().group(level3groupId).remove();
+        }
+        assertGroupSubtreeMembers(roleRichGroupId, "rolerichuser");
+    }
+
+    private void assertGroupSubtreeMembers(String groupId, String... expectedUsernames) throws IOException, URISyntaxException {
+        List<NameValuePair> nvps = List.of(
+                new BasicNameValuePair("groupId", groupId),
+                new BasicNameValuePair("includeSubgroups", "true"));
+        var page = this.api(keycloak, testRealm).query(UsersPageRepresentation.class, getMethod, "/realms/master/api/admin/realms/test/users", nvps);
+        assertThat(Arrays.stream(grabUsers(page)).map(UserRepresentation::getUsername).toArray(), arrayContainingInAnyOrder(expectedUsernames));
+        assertThat(page.getCount(), is(expectedUsernames.length));
+    }
+
     @Test
     void testGetUsersWithRole() throws IOException, URISyntaxException {
         List<NameValuePair> nvps = new ArrayList<>();
@@ -164,6 +380,56 @@ class CtUsersResourceTest extends AbstractRestApiExtensionTest {
         assertThat(page.getCount(), is(6));
     }
 
+    @Test
+    void testGetUsersWithFields() throws IOException, URISyntaxException {
+        List<NameValuePair> nvps = List.of(
+                new BasicNameValuePair("fields", "email,enabled"),
+                new BasicNameValuePair("max", "3"));
+        var page = this.api(keycloak, testRealm).query(UsersPageRepresentation.class, getMethod, "/realms/master/api/admin/realms/test/users", nvps);
+        var users = grabUsers(page);
+        assertThat(users, arrayWithSize(3));
+        assertThat(page.getCount(), is(this.api(keycloak, testRealm).query(UsersPageRepresentation.class, getMethod,
+                "/realms/master/api/admin/realms/test/users", List.of()).getCount()));
+        for (UserRepresentation user : users) {
+            // id and the sort field are always returned
+            assertThat(user.getId(), is(notNullValue()));
+            assertThat(user.getUsername(), is(notNullValue()));
+            assertThat(user.isEnabled(), is(notNullValue()));
+            assertThat(user.getFirstName(), is(nullValue()));
+            assertThat(user.getAttributes(), is(nullValue()));
+        }
+
+        // Cursors work with sparse fieldsets
+        nvps = List.of(
+                new BasicNameValuePair("fields", "email"),
+                new BasicNameValuePair("max", "3"),
+                new BasicNameValuePair("after", page.getNext()));
+        var next = this.api(keycloak, testRealm).query(UsersPageRepresentation.class, getMethod, "/realms/master/api/admin/realms/test/users", nvps);
+        assertThat(grabUsers(next)[0].getUsername().compareTo(users[2].getUsername()), greaterThan(0));
+    }
+
+    @Test
+    void testGetUsersWithEffectiveRole() throws IOException, URISyntaxException {
+        // Members of the groups having the role, and of their subgroups, are returned as well
+        assertEffectiveRoleMembers(findRoleId("user"), "non-duplicate-email-user", "topgroupuser2", "keycloak-user@localhost",
+                "john-doh@localhost", "test-user@localhost", "topgroupuser", "level2groupuser", "rolerichuser");
+        // The role is only granted through realm-composite-role, mapped to roleRichGroup
+        assertEffectiveRoleMembers(findRoleId("sample-realm-role"), "rolerichuser");
+
+        List<NameValuePair> nvps = List.of(new BasicNameValuePair("roleId", findRoleId("sample-realm-role")));
+        var page = this.api(keycloak, testRealm).query(UsersPageRepresentation.class, getMethod, "/realms/master/api/admin/realms/test/users", nvps);
+        assertThat(grabUsers(page), arrayWithSize(0));
+    }
+
+    private void assertEffectiveRoleMembers(String roleId, String... expectedUsernames) throws IOException, URISyntaxException {
+        List<NameValuePair> nvps = List.of(
+                new BasicNameValuePair("roleId", roleId),
+                new BasicNameValuePair("effective", "true"));
+        var page = this.api(keycloak, testRealm).query(UsersPageRepresentation.class, getMethod, "/realms/master/api/admin/realms/test/users", nvps);
+        assertThat(Arrays.stream(grabUsers(page)).map(UserRepresentation::getUsername).toArray(), arrayContainingInAnyOrder(expectedUsernames));
+        assertThat(page.getCount(), is(expectedUsernames.length));
+    }
+
     @Test
     void testGetUsersWithGroupAndRole() throws IOException, URISyntaxException {
         List<NameValuePair> nvps = new ArrayList<>();
@@ -227,6 +493,148 @@ class CtUsersResourceTest extends AbstractRestApiExtensionTest {
         assertThat(page.getCount(), is(2));
     }
 
+    @Test
+    void testExportUsers() throws IOException, URISyntaxException {
+        String path = "/realms/master/api/admin/realms/test/users/export?search=topgroupuser";
+        List<UserRepresentation> exported = parseExport(this.api(keycloak, testRealm).callJSON(getMethod, path, null));
+        assertThat(exported.stream().map(UserRepresentation::getUsername).toArray(),
+                arrayContainingInAnyOrder("topgroupuser", "topgroupuser2"));
+
+        // Resume after the first exported user
+        String resumed = this.api(keycloak, testRealm).callJSON(getMethod, path + "&after=" + exported.getFirst().getId(), null);
+        assertThat(parseExport(resumed).stream().map(UserRepresentation::getId).toArray(), arrayContaining(exported.get(1).getId()));
+    }
+
+    @ParameterizedTest
+    @MethodSource("uniqueKeySearches")
+    void testGetUsersByUniqueKey(String field, String value, String expectedUsername) throws IOException, URISyntaxException {
+        List<NameValuePair> nvps = List.of(
+                new BasicNameValuePair(field, value),
+                new BasicNameValuePair("exact", "true"));
+        var page = this.api(keycloak, testRealm).query(UsersPageRepresentation.class, getMethod, "/realms/master/api/admin/realms/test/users", nvps);
+        Object[] expected = expectedUsername == null ? new Object[0] : new Object[]{expectedUsername};
+        assertThat(Arrays.stream(grabUsers(page)).map(UserRepresentation::getUsername).toArray(), is(expected));
+        assertThat(page.getCount(), is(expected.length));
+    }
+
+    static Stream<Arguments> uniqueKeySearches() {
+        return Stream.of(
+                Arguments.of("username", "TopGroupUser", "topgroupuser"),
+                Arguments.of("username", "topgroup", null),
+                Arguments.of("email", "Top2@RedHat.com", "topgroupuser2"),
+                Arguments.of("email", "unknown@redhat.com", null)
+        );
+    }
+
+    @ParameterizedTest
+    @MethodSource("prefixedUniqueKeySearches")
+    void testGetUsersByPrefixedUniqueKey(String field, String value, String exact, String expectedUsername) throws IOException, URISyntaxException {
+        List<NameValuePair> nvps = new ArrayList<>();
+        nvps.add(new BasicNameValuePair(field, value));
+        if (exact != null) {
+            nvps.add(new BasicNameValuePair("exact", exact));
+        }
+        var page = this.api(keycloak, testRealm).query(UsersPageRepresentation.class, getMethod, "/realms/master/api/admin/realms/test/users", nvps);
+        assertThat(Arrays.stream(grabUsers(page)).map(UserRepresentation::getUsername).toArray(), arrayContaining(expectedUsername));
+        assertThat(page.getCount(), is(1));
+    }
+
+    static Stream<Arguments> prefixedUniqueKeySearches() {
+        return Stream.of(
+                Arguments.of("username", "=topgroupuser", null, "topgroupuser"),
+                Arguments.of("username", "=TopGroupUser", "true", "topgroupuser"),
+                Arguments.of("username", "=topgroupuser", "false", "topgroupuser"),
+                Arguments.of("email", "=top2@redhat.com", "true", "topgroupuser2")
+        );
+    }
+
+    @Test
+    void testGetUsersByUniqueKeyWithoutCount() throws IOException, URISyntaxException {
+        List<NameValuePair> nvps = List.of(
+                new BasicNameValuePair("username", "=topgroupuser"),
+                new BasicNameValuePair("countMode", "none"));
+        var page = this.api(keycloak, testRealm).query(UsersPageRepresentation.class, getMethod, "/realms/master/api/admin/realms/test/users", nvps);
+        assertThat(Arrays.stream(grabUsers(page)).map(UserRepresentation::getUsername).toArray(), arrayContaining("topgroupuser"));
+        assertThat(page.getCount(), is(nullValue()));
+        assertThat(page.getHasMore(), is(false));
+    }
+
+    @Test
+    void testLookupUsers() throws IOException, URISyntaxException {
+        String johnId = testRealm.admin().users().search("john-doh@localhost", true).getFirst().getId();
+        Map<String, Object> lookup = Map.of(
+                "ids", List.of(johnId, "unknown-id"),
+                "usernames", List.of("TopGroupUser", "john-doh@localhost", "unknown-user"),
+                "emails", List.of("level2@redhat.com", "unknown@redhat.com"));
+        String response = this.api(keycloak, testRealm).callJSON("POST", "/realms/master/api/admin/realms/test/users/lookup?briefRepresentation=true", lookup);
+        UsersLookupResultRepresentation result = JsonSerialization.readValue(response, UsersLookupResultRepresentation.class);
+
+        // john-doh@localhost is matched by id and username but returned once
+        assertThat(result.getUsers().stream().map(UserRepresentation::getUsername).toArray(),
+                arrayContainingInAnyOrder("john-doh@localhost", "topgroupuser", "level2groupuser"));
+        assertThat(result.getMisses().getIds(), contains("unknown-id"));
+        assertThat(result.getMisses().getUsernames(), contains("unknown-user"));
+        assertThat(result.getMisses().getEmails(), contains("unknown@redhat.com"));
+    }
+
+    @Test
+    void testGetUsersWithAttributes() throws IOException, URISyntaxException {
+        UserProfileResource userProfile = testRealm.admin().users().userProfile();
+        UPConfig initialConfig = userProfile.getConfiguration();
+        UPConfig config = userProfile.getConfiguration();
+        config.setUnmanagedAttributePolicy(UPConfig.UnmanagedAttributePolicy.ENABLED);
+        userProfile.update(config);
+        try {
+            setAttributes("topgroupuser", Map.of("department", List.of("sales", "support"), "country", List.of("CH")));
+            setAttributes("topgroupuser2", Map.of("department", List.of("sales"), "country", List.of("FR")));
+
+            assertSearchByAttributes("department:sales", "topgroupuser", "topgroupuser2");
+            assertSearchByAttributes("department:support", "topgroupuser");
+            assertSearchByAttributes("department:sales country:ch", "topgroupuser");
+            assertSearchByAttributes("department:support country:fr");
+            assertSearchByAttributes("Department:Sales", "topgroupuser", "topgroupuser2");
+
+            // Sparse fieldset with custom attributes
+            List<NameValuePair> nvps = List.of(
+                    new BasicNameValuePair("groupId", findGroupId("topGroup")),
+                    new BasicNameValuePair("fields", "enabled,attributes.department"));
+            var page = this.api(keycloak, testRealm).query(UsersPageRepresentation.class, getMethod, "/realms/master/api/admin/realms/test/users", nvps);
+            Map<String, UserRepresentation> users = Arrays.stream(grabUsers(page)).collect(Collectors.toMap(UserRepresentation::getUsername, user -> user));
+            assertThat(users.keySet(), containsInAnyOrder("topgroupuser", "topgroupuser2"));
+            assertThat(users.get("topgroupuser").getAttributes().get("department"), containsInAnyOrder("sales", "support"));
+            assertThat(users.get("topgroupuser").getAttributes().containsKey("country"), is(false));
+            assertThat(users.get("topgroupuser2").getAttributes().get("department"), contains("sales"));
+        } finally {
+            setAttributes("topgroupuser", Map.of());
+            setAttributes("topgroupuser2", Map.of());
+            userProfile.update(initialConfig);
+        }
+    }
+
+    private void setAttributes(String username, Map<String, List<String>> attributes) {
+        UserResource userResource = testRealm.admin().users().get(testRealm.admin().users().search(username, true).getFirst().getId());
+        UserRepresentation user = userResource.toRepresentation();
+        user.setAttributes(attributes);
+        userResource.update(user);
+    }
+
+    private void assertSearchByAttributes(String query, String... expectedUsernames) throws IOException, URISyntaxException {
+        List<NameValuePair> nvps = Collections.singletonList(new BasicNameValuePair("q", query));
+        var page = this.api(keycloak, testRealm).query(UsersPageRepresentation.class, getMethod, "/realms/master/api/admin/realms/test/users", nvps);
+        assertThat(Arrays.stream(grabUsers(page)).map(UserRepresentation::getUsername).toArray(), arrayContainingInAnyOrder(expectedUsernames));
+        assertThat(page.getCount(), is(expectedUsernames.length));
+    }
+
+    private List<UserRepresentation> parseExport(String ndjson) throws IOException {
+        List<UserRepresentation> res = new ArrayList<>();
+        for (String line : ndjson.split("\n")) {
+            if (!line.isBlank()) {
+                res.add(JsonSerialization.readValue(line, UserRepresentation.class));
+            }
+        }
+        return res;
+    }
+
     private UserRepresentation[] grabUsers(UsersPageRepresentation page) {
         return page.getUsers().toArray(UserRepresentation[]::new);
     }
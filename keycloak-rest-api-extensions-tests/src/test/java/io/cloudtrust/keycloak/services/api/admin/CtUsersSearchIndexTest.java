@@ -0,0 +1,75 @@
+package io.cloudtrust.keycloak.services.api.admin;
+
+import io.cloudtrust.keycloak.AbstractRestApiExtensionTest;
+import io.cloudtrust.keycloak.config.SearchIndexServerConfig;
+import io.cloudtrust.keycloak.representations.idm.UsersPageRepresentation;
+import io.cloudtrust.keycloak.representations.idm.UsersSearchIndexRepresentation;
+import jakarta.ws.rs.core.Response;
+import org.apache.http.NameValuePair;
+import org.apache.http.message.BasicNameValuePair;
+import org.junit.jupiter.api.Test;
+import org.keycloak.representations.idm.UserRepresentation;
+import org.keycloak.testframework.annotations.KeycloakIntegrationTest;
+import org.keycloak.util.JsonSerialization;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.arrayContainingInAnyOrder;
+import static org.hamcrest.Matchers.is;
+
+@KeycloakIntegrationTest(config = SearchIndexServerConfig.class)
+class CtUsersSearchIndexTest extends AbstractRestApiExtensionTest {
+    private static final String getMethod = "GET";
+
+    @Test
+    void testSearchIndex() throws IOException, URISyntaxException {
+        String indexPath = "/realms/master/api/admin/realms/test/users/search-index";
+        var report = JsonSerialization.readValue(this.api(keycloak, testRealm).callJSON("POST", indexPath, null), UsersSearchIndexRepresentation.class);
+        assertThat(report.isBuilt(), is(true));
+        assertThat(report.isComplete(), is(true));
+        assertThat(report.getIndexedUsers(), is(report.getDatabaseUsers()));
+
+        assertSearch("*groupuse*", "topgroupuser", "topgroupuser2", "level2groupuser");
+        assertSearch("top *user2*", "topgroupuser2");
+
+        // The index is updated by the admin events and, like the database, ignores the case but not the accents
+        UserRepresentation user = new UserRepresentation();
+        user.setUsername("indexed-user");
+        user.setFirstName("Élodie");
+        user.setEnabled(true);
+        String id;
+        try (Response response = testRealm.admin().users().create(user)) {
+            assertThat(response.getStatus(), is(201));
+            String location = response.getLocation().getPath();
+            id = location.substring(location.lastIndexOf('/') + 1);
+        }
+        try {
+            assertSearch("*ÉLOD*", "indexed-user");
+            assertSearch("*elod*");
+        } finally {
+            testRealm.admin().users().delete(id).close();
+        }
+        assertSearch("*élod*");
+
+        report = JsonSerialization.readValue(this.api(keycloak, testRealm).callJSON(getMethod, indexPath, null), UsersSearchIndexRepresentation.class);
+        assertThat(report.getMissingUsers(), is(0L));
+        assertThat(report.getOutdatedUsers(), is(0L));
+        assertThat(report.getRemovedUsers(), is(0L));
+    }
+
+    private void assertSearch(String search, String... expectedUsernames) throws IOException, URISyntaxException {
+        List<NameValuePair> nvps = Collections.singletonList(new BasicNameValuePair("search", search));
+        var page = this.api(keycloak, testRealm).query(UsersPageRepresentation.class, getMethod, "/realms/master/api/admin/realms/test/users", nvps);
+        assertThat(Arrays.stream(grabUsers(page)).map(UserRepresentation::getUsername).toArray(), arrayContainingInAnyOrder(expectedUsernames));
+        assertThat(page.getCount(), is(expectedUsernames.length));
+    }
+
+    private UserRepresentation[] grabUsers(UsersPageRepresentation page) {
+        return page.getUsers().toArray(UserRepresentation[]::new);
+    }
+}
@@ -0,0 +1,14 @@
+package io.cloudtrust.keycloak.services.api.admin;
+
+import io.cloudtrust.keycloak.config.CountThenPageServerConfig;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.keycloak.testframework.annotations.KeycloakIntegrationTest;
+
+@KeycloakIntegrationTest(config = CountThenPageServerConfig.class)
+@EnabledIfSystemProperty(named = "benchmark", matches = "true")
+class GetUsersCountThenPageBenchmarkTest extends AbstractGetUsersBenchmark {
+    @Override
+    protected String getSetup() {
+        return "count then page";
+    }
+}
@@ -0,0 +1,14 @@
+package io.cloudtrust.keycloak.services.api.admin;
+
+import io.cloudtrust.keycloak.config.ServerConfig;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.keycloak.testframework.annotations.KeycloakIntegrationTest;
+
+@KeycloakIntegrationTest(config = ServerConfig.class)
+@EnabledIfSystemProperty(named = "benchmark", matches = "true")
+class GetUsersWindowedCountBenchmarkTest extends AbstractGetUsersBenchmark {
+    @Override
+    protected String getSetup() {
+        return "page and count fetched by a single statement";
+    }
+}
@@ -0,0 +1,14 @@
+package io.cloudtrust.keycloak.services.api.admin;
+
+import io.cloudtrust.keycloak.config.NoUserCacheServerConfig;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.keycloak.testframework.annotations.KeycloakIntegrationTest;
+
+@KeycloakIntegrationTest(config = NoUserCacheServerConfig.class)
+@EnabledIfSystemProperty(named = "benchmark", matches = "true")
+class GetUsersWithoutUserCacheBenchmarkTest extends AbstractGetUsersBenchmark {
+    @Override
+    protected String getSetup() {
+        return "users materialized from the entities, without user cache";
+    }
+}
@@ -0,0 +1,79 @@
+package io.cloudtrust.keycloak.services.api.admin;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import io.cloudtrust.keycloak.AbstractRestApiExtensionTest;
+import io.cloudtrust.keycloak.config.ServerConfig;
+import io.cloudtrust.keycloak.representations.idm.PasswordHashStatisticsRepresentation;
+import io.cloudtrust.keycloak.representations.idm.UsersPageRepresentation;
+import io.cloudtrust.keycloak.representations.idm.UsersTimelineBucketRepresentation;
+import jakarta.ws.rs.core.Response;
+import org.apache.http.NameValuePair;
+import org.apache.http.message.BasicNameValuePair;
+import org.junit.jupiter.api.Test;
+import org.keycloak.representations.idm.UserRepresentation;
+import org.keycloak.testframework.annotations.KeycloakIntegrationTest;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.notNullValue;
+
+@KeycloakIntegrationTest(config = ServerConfig.class)
+class StatisticsResourceTest extends AbstractRestApiExtensionTest {
+    private static final String getMethod = "GET";
+
+    private int countUsers() throws IOException, URISyntaxException {
+        return this.api(keycloak, testRealm).query(UsersPageRepresentation.class, getMethod, "/realms/master/api/admin/realms/test/users").getCount();
+    }
+
+    @Test
+    void testGetUsersTimeline() throws IOException, URISyntaxException {
+        List<NameValuePair> nvps = List.of(new BasicNameValuePair("interval", "month"), new BasicNameValuePair("from", "2000-01-01"));
+        List<UsersTimelineBucketRepresentation> timeline = getUsersTimeline(nvps);
+        for (int i = 1; i < timeline.size(); i++) {
+            assertThat(timeline.get(i).getStart(), is(timeline.get(i - 1).getEnd()));
+        }
+        UsersTimelineBucketRepresentation current = timeline.getLast();
+        assertThat(current.getEnd(), is(greaterThan(System.currentTimeMillis())));
+        assertThat(timeline.stream().mapToLong(UsersTimelineBucketRepresentation::getCount).sum(), is(greaterThanOrEqualTo((long) countUsers())));
+
+        // The current bucket is counted again by each request
+        UserRepresentation user = new UserRepresentation();
+        user.setUsername("timeline-user");
+        String userId;
+        try (Response response = testRealm.admin().users().create(user)) {
+            assertThat(response.getStatus(), is(201));
+            String location = response.getLocation().getPath();
+            userId = location.substring(location.lastIndexOf('/') + 1);
+        }
+        try {
+            assertThat(getUsersTimeline(nvps).getLast().getCount(), is(current.getCount() + 1));
+        } finally {
+            testRealm.admin().users().delete(userId).close();
+        }
+    }
+
+    private List<UsersTimelineBucketRepresentation> getUsersTimeline(List<NameValuePair> nvps) throws IOException, URISyntaxException {
+        return this.api(keycloak, testRealm).query(new TypeReference<List<UsersTimelineBucketRepresentation>>() {
+        }, getMethod, "/realms/master/api/admin/realms/test/statistics/users/timeline", nvps);
+    }
+
+    @Test
+    void testGetPasswordHashesStatistics() throws IOException, URISyntaxException {
+        List<PasswordHashStatisticsRepresentation> hashes = this.api(keycloak, testRealm).query(new TypeReference<List<PasswordHashStatisticsRepresentation>>() {
+        }, getMethod, "/realms/master/api/admin/realms/test/statistics/credentials/password-hashes", List.of());
+        assertThat(hashes, is(not(empty())));
+        for (PasswordHashStatisticsRepresentation hash : hashes) {
+            assertThat(hash.getAlgorithm(), is(notNullValue()));
+            assertThat(hash.getHashIterations(), is(greaterThan(0)));
+            assertThat(hash.getCount(), is(greaterThan(0L)));
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package io.cloudtrust.keycloak.representations.idm;
+
+/**
+ * Number of passwords hashed with an algorithm and a number of iterations
+ */
+public class PasswordHashStatisticsRepresentation {
+    /**
+     * Password hash provider, like pbkdf2-sha512 or ssha256. Null when it is not recorded in the credential.
+     */
+    private String algorithm;
+
+    /**
+     * Null when it is not recorded in the credential
+     */
+    private Integer hashIterations;
+
+    private long count;
+
+    /**
+     * For unserializing
+     */
+    protected PasswordHashStatisticsRepresentation() {
+    }
+
+    public PasswordHashStatisticsRepresentation(String algorithm, Integer hashIterations, long count) {
+        this.algorithm = algorithm;
+        this.hashIterations = hashIterations;
+        this.count = count;
+    }
+
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    public void setAlgorithm(String algorithm) {
+        this.algorithm = algorithm;
+    }
+
+    public Integer getHashIterations() {
+        return hashIterations;
+    }
+
+    public void setHashIterations(Integer hashIterations) {
+        this.hashIterations = hashIterations;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public void setCount(long count) {
+        this.count = count;
+    }
+}
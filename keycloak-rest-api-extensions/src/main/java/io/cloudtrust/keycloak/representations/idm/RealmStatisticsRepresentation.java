@@ -0,0 +1,36 @@
+package io.cloudtrust.keycloak.representations.idm;
+
+/**
+ * Users and credentials statistics of a realm
+ */
+public class RealmStatisticsRepresentation {
+    private UsersStatisticsRepresentation users;
+    private CredentialsStatisticsRepresentation credentials;
+
+    /**
+     * For unserializing
+     */
+    protected RealmStatisticsRepresentation() {
+    }
+
+    public RealmStatisticsRepresentation(UsersStatisticsRepresentation users, CredentialsStatisticsRepresentation credentials) {
+        this.users = users;
+        this.credentials = credentials;
+    }
+
+    public UsersStatisticsRepresentation getUsers() {
+        return users;
+    }
+
+    public void setUsers(UsersStatisticsRepresentation users) {
+        this.users = users;
+    }
+
+    public CredentialsStatisticsRepresentation getCredentials() {
+        return credentials;
+    }
+
+    public void setCredentials(CredentialsStatisticsRepresentation credentials) {
+        this.credentials = credentials;
+    }
+}
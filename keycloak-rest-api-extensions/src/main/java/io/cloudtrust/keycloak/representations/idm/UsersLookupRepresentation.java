@@ -0,0 +1,37 @@
+package io.cloudtrust.keycloak.representations.idm;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Users to look up by ids, usernames or emails. Also used to report the values which matched no user.
+ */
+public class UsersLookupRepresentation {
+    private List<String> ids = new ArrayList<>();
+    private List<String> usernames = new ArrayList<>();
+    private List<String> emails = new ArrayList<>();
+
+    public List<String> getIds() {
+        return ids;
+    }
+
+    public void setIds(List<String> ids) {
+        this.ids = ids;
+    }
+
+    public List<String> getUsernames() {
+        return usernames;
+    }
+
+    public void setUsernames(List<String> usernames) {
+        this.usernames = usernames;
+    }
+
+    public List<String> getEmails() {
+        return emails;
+    }
+
+    public void setEmails(List<String> emails) {
+        this.emails = emails;
+    }
+}
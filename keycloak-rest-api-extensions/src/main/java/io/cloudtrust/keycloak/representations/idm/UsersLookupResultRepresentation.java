@@ -0,0 +1,47 @@
+package io.cloudtrust.keycloak.representations.idm;
+
+import org.keycloak.representations.idm.UserRepresentation;
+
+import java.util.List;
+
+/**
+ * Result of a users lookup
+ */
+public class UsersLookupResultRepresentation {
+    /**
+     * Users matching one of the values, each user being returned once
+     */
+    private List<UserRepresentation> users;
+
+    /**
+     * Values which did not match any user
+     */
+    private UsersLookupRepresentation misses;
+
+    /**
+     * For unserializing
+     */
+    protected UsersLookupResultRepresentation() {
+    }
+
+    public UsersLookupResultRepresentation(List<UserRepresentation> users, UsersLookupRepresentation misses) {
+        this.users = users;
+        this.misses = misses;
+    }
+
+    public List<UserRepresentation> getUsers() {
+        return users;
+    }
+
+    public void setUsers(List<UserRepresentation> users) {
+        this.users = users;
+    }
+
+    public UsersLookupRepresentation getMisses() {
+        return misses;
+    }
+
+    public void setMisses(UsersLookupRepresentation misses) {
+        this.misses = misses;
+    }
+}
@@ -3,6 +3,7 @@ package io.cloudtrust.keycloak.representations.idm;
 import org.keycloak.representations.idm.UserRepresentation;
 
 import java.util.List;
+import java.util.Map;
 
 public class UsersPageRepresentation {
 
@@ -12,9 +13,24 @@ public class UsersPageRepresentation {
     List<UserRepresentation> users;
 
     /**
-     * Total users count
+     * Total users count, null when the count was not requested
      */
-    int count;
+    Integer count;
+
+    /**
+     * Whether there are users after this page, only provided when the count was not requested
+     */
+    Boolean hasMore;
+
+    /**
+     * Cursor of the next page (keyset pagination), null when the page is not full
+     */
+    String next;
+
+    /**
+     * Count of the matching users by value of each requested facet, null when no facet was requested
+     */
+    Map<String, Map<String, Long>> facets;
 
     /**
      * For unserializing
@@ -22,7 +38,7 @@ public class UsersPageRepresentation {
     protected UsersPageRepresentation() {
     }
 
-    public UsersPageRepresentation(List<UserRepresentation> users, int count) {
+    public UsersPageRepresentation(List<UserRepresentation> users, Integer count) {
         this.users = users;
         this.count = count;
     }
@@ -35,11 +51,35 @@ public class UsersPageRepresentation {
         this.users = users;
     }
 
-    public int getCount() {
+    public Integer getCount() {
         return count;
     }
 
-    public void setCount(int count) {
+    public void setCount(Integer count) {
         this.count = count;
     }
+
+    public Boolean getHasMore() {
+        return hasMore;
+    }
+
+    public void setHasMore(Boolean hasMore) {
+        this.hasMore = hasMore;
+    }
+
+    public String getNext() {
+        return next;
+    }
+
+    public void setNext(String next) {
+        this.next = next;
+    }
+
+    public Map<String, Map<String, Long>> getFacets() {
+        return facets;
+    }
+
+    public void setFacets(Map<String, Map<String, Long>> facets) {
+        this.facets = facets;
+    }
 }
@@ -0,0 +1,105 @@
+package io.cloudtrust.keycloak.representations.idm;
+
+import java.util.List;
+
+/**
+ * State of the users search index of a realm, compared with the database
+ */
+public class UsersSearchIndexRepresentation {
+    private boolean enabled;
+    private boolean built;
+    private boolean complete;
+    private long indexedUsers;
+    private long databaseUsers;
+    private long missingUsers;
+    private long outdatedUsers;
+    private long removedUsers;
+    private List<String> inconsistentUserIds;
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public boolean isBuilt() {
+        return built;
+    }
+
+    public void setBuilt(boolean built) {
+        this.built = built;
+    }
+
+    /**
+     * @return whether the index is known to hold all the users of the realm: only then is it used by the searches
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    public void setComplete(boolean complete) {
+        this.complete = complete;
+    }
+
+    public long getIndexedUsers() {
+        return indexedUsers;
+    }
+
+    public void setIndexedUsers(long indexedUsers) {
+        this.indexedUsers = indexedUsers;
+    }
+
+    public long getDatabaseUsers() {
+        return databaseUsers;
+    }
+
+    public void setDatabaseUsers(long databaseUsers) {
+        this.databaseUsers = databaseUsers;
+    }
+
+    /**
+     * @return the number of users of the database which are not indexed
+     */
+    public long getMissingUsers() {
+        return missingUsers;
+    }
+
+    public void setMissingUsers(long missingUsers) {
+        this.missingUsers = missingUsers;
+    }
+
+    /**
+     * @return the number of indexed users whose values differ from the database
+     */
+    public long getOutdatedUsers() {
+        return outdatedUsers;
+    }
+
+    public void setOutdatedUsers(long outdatedUsers) {
+        this.outdatedUsers = outdatedUsers;
+    }
+
+    /**
+     * @return the number of indexed users which do not exist anymore in the database
+     */
+    public long getRemovedUsers() {
+        return removedUsers;
+    }
+
+    public void setRemovedUsers(long removedUsers) {
+        this.removedUsers = removedUsers;
+    }
+
+    /**
+     * @return some of the inconsistent users
+     */
+    public List<String> getInconsistentUserIds() {
+        return inconsistentUserIds;
+    }
+
+    public void setInconsistentUserIds(List<String> inconsistentUserIds) {
+        this.inconsistentUserIds = inconsistentUserIds;
+    }
+}
@@ -0,0 +1,54 @@
+package io.cloudtrust.keycloak.representations.idm;
+
+/**
+ * Number of users created in a bucket of the users timeline
+ */
+public class UsersTimelineBucketRepresentation {
+    /**
+     * Start of the bucket (included), timestamp in milliseconds
+     */
+    private long start;
+
+    /**
+     * End of the bucket (excluded), timestamp in milliseconds
+     */
+    private long end;
+
+    private long count;
+
+    /**
+     * For unserializing
+     */
+    protected UsersTimelineBucketRepresentation() {
+    }
+
+    public UsersTimelineBucketRepresentation(long start, long end, long count) {
+        this.start = start;
+        this.end = end;
+        this.count = count;
+    }
+
+    public long getStart() {
+        return start;
+    }
+
+    public void setStart(long start) {
+        this.start = start;
+    }
+
+    public long getEnd() {
+        return end;
+    }
+
+    public void setEnd(long end) {
+        this.end = end;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public void setCount(long count) {
+        this.count = count;
+    }
+}
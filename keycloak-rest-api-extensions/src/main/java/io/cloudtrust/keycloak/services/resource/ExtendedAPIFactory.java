@@ -1,16 +1,42 @@
 package io.cloudtrust.keycloak.services.resource;
 
 import io.cloudtrust.keycloak.services.resource.api.ApiConfig;
+import io.cloudtrust.keycloak.services.resource.api.cache.UsersStatisticsCache;
+import io.cloudtrust.keycloak.services.resource.api.index.UsersSearchIndexClusterListener;
+import io.cloudtrust.keycloak.services.resource.api.index.UsersSearchIndexes;
+import jakarta.persistence.EntityManager;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.jboss.logging.Logger;
 import org.keycloak.Config;
+import org.keycloak.cluster.ClusterProvider;
+import org.keycloak.connections.infinispan.InfinispanConnectionProvider;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.cache.UserCache;
+import org.keycloak.models.cache.infinispan.InfinispanUserCacheProviderFactory;
+import org.keycloak.models.utils.KeycloakModelUtils;
 import org.keycloak.services.resource.RealmResourceProvider;
 import org.keycloak.services.resource.RealmResourceProviderFactory;
+import org.keycloak.timer.TimerProvider;
 
+import java.nio.file.Paths;
 import java.util.concurrent.TimeUnit;
 
 public class ExtendedAPIFactory implements RealmResourceProviderFactory {
+    private static final Logger logger = Logger.getLogger(ExtendedAPIFactory.class);
     private static final String TERMS_OF_USE_ACCEPTANCE_DELAY_CONFIG_KEY = "termsOfUseAcceptanceDelayDays";
+    private static final String USERS_COUNT_MAX_STALENESS_CONFIG_KEY = "usersCountMaxStalenessSeconds";
+    private static final String USERS_WINDOWED_COUNT_ENABLED_CONFIG_KEY = "usersWindowedCountEnabled";
+    private static final String GROUPS_MAX_STALENESS_CONFIG_KEY = "groupsMaxStalenessSeconds";
+    private static final String ROLES_MAX_STALENESS_CONFIG_KEY = "rolesMaxStalenessSeconds";
+    private static final String USERS_STATISTICS_MAX_STALENESS_CONFIG_KEY = "usersStatisticsMaxStalenessSeconds";
+    private static final String COALESCED_QUERIES_REUSE_CONFIG_KEY = "coalescedQueriesReuseMillis";
+    private static final String USERS_STATISTICS_RECONCILIATION_TASK = "ct-api-users-statistics-reconciliation";
+    private static final String USERS_SEARCH_INDEX_ENABLED_CONFIG_KEY = "usersSearchIndexEnabled";
+    private static final String USERS_SEARCH_INDEX_DIRECTORY_CONFIG_KEY = "usersSearchIndexDirectory";
+    private static final String USERS_SEARCH_INDEX_MAX_USERS_CONFIG_KEY = "usersSearchIndexMaxUsers";
+    private static final String USERS_SEARCH_INDEX_MAX_INDEXED_USERS_CONFIG_KEY = "usersSearchIndexMaxIndexedUsers";
 
     public static final String ID = "api";
 
@@ -25,6 +51,40 @@ public class ExtendedAPIFactory implements RealmResourceProviderFactory {
     public void init(Config.Scope scope) {
         int delay = getInt(scope, TERMS_OF_USE_ACCEPTANCE_DELAY_CONFIG_KEY, "Terms of use acceptance delay");
         apiConfig.setTermsOfUseAcceptanceDelayMillis(TimeUnit.DAYS.toMillis(delay));
+        Long maxStaleness = scope.getLong(USERS_COUNT_MAX_STALENESS_CONFIG_KEY);
+        if (maxStaleness != null) {
+            apiConfig.setUsersCountMaxStalenessMillis(TimeUnit.SECONDS.toMillis(maxStaleness));
+        }
+        apiConfig.setUsersWindowedCountEnabled(scope.getBoolean(USERS_WINDOWED_COUNT_ENABLED_CONFIG_KEY, true));
+        Long groupsMaxStaleness = scope.getLong(GROUPS_MAX_STALENESS_CONFIG_KEY);
+        if (groupsMaxStaleness != null) {
+            apiConfig.setGroupsMaxStalenessMillis(TimeUnit.SECONDS.toMillis(groupsMaxStaleness));
+        }
+        Long rolesMaxStaleness = scope.getLong(ROLES_MAX_STALENESS_CONFIG_KEY);
+        if (rolesMaxStaleness != null) {
+            apiConfig.setRolesMaxStalenessMillis(TimeUnit.SECONDS.toMillis(rolesMaxStaleness));
+        }
+        Long statisticsMaxStaleness = scope.getLong(USERS_STATISTICS_MAX_STALENESS_CONFIG_KEY);
+        if (statisticsMaxStaleness != null) {
+            apiConfig.setUsersStatisticsMaxStalenessMillis(TimeUnit.SECONDS.toMillis(statisticsMaxStaleness));
+        }
+        Long coalescedQueriesReuse = scope.getLong(COALESCED_QUERIES_REUSE_CONFIG_KEY);
+        if (coalescedQueriesReuse != null) {
+            apiConfig.setCoalescedQueriesReuseMillis(coalescedQueriesReuse);
+        }
+
+        UsersSearchIndexes usersSearchIndexes = apiConfig.getUsersSearchIndexes();
+        usersSearchIndexes.setEnabled(scope.getBoolean(USERS_SEARCH_INDEX_ENABLED_CONFIG_KEY, false));
+        String directory = scope.get(USERS_SEARCH_INDEX_DIRECTORY_CONFIG_KEY);
+        if (directory != null) {
+            usersSearchIndexes.setDirectory(Paths.get(directory));
+        }
+        usersSearchIndexes.setMaxUsers(scope.getInt(USERS_SEARCH_INDEX_MAX_USERS_CONFIG_KEY, usersSearchIndexes.getMaxUsers()));
+        usersSearchIndexes.setMaxIndexedUsers(scope.getInt(USERS_SEARCH_INDEX_MAX_INDEXED_USERS_CONFIG_KEY, usersSearchIndexes.getMaxIndexedUsers()));
+    }
+
+    public ApiConfig getApiConfig() {
+        return apiConfig;
     }
 
     private static int getInt(Config.Scope config, String configName, String configDesc) {
@@ -38,12 +98,40 @@ public class ExtendedAPIFactory implements RealmResourceProviderFactory {
 
     @Override
     public void postInit(KeycloakSessionFactory keycloakSessionFactory) {
-        // Nothing to do
+        KeycloakModelUtils.runJobInTransaction(keycloakSessionFactory, session -> {
+            EntityManager em = session.getProvider(JpaConnectionProvider.class).getEntityManager();
+            apiConfig.setWindowFunctionsSupported(em.getEntityManagerFactory().unwrap(SessionFactoryImplementor.class)
+                    .getJdbcServices().getDialect().supportsWindowFunctions());
+
+            // Search indexes get the changes made on the other nodes from the invalidations of their user cache
+            UsersSearchIndexes usersSearchIndexes = apiConfig.getUsersSearchIndexes();
+            if (usersSearchIndexes.isEnabled() && isClustered(session) && session.getProvider(UserCache.class) == null) {
+                logger.warn("The users search index is disabled: in a cluster, it requires the user cache to get the changes made on the other nodes");
+                usersSearchIndexes.setEnabled(false);
+            }
+            ClusterProvider cluster = session.getProvider(ClusterProvider.class);
+            if (usersSearchIndexes.isEnabled() && cluster != null) {
+                cluster.registerListener(InfinispanUserCacheProviderFactory.USER_INVALIDATION_EVENTS,
+                        new UsersSearchIndexClusterListener(keycloakSessionFactory, usersSearchIndexes));
+            }
+            // Each node reconciles the users statistics it serves
+            TimerProvider timer = session.getProvider(TimerProvider.class);
+            if (timer != null) {
+                timer.scheduleTask(apiConfig.getUsersStatisticsCache()::reconcile, UsersStatisticsCache.RECONCILIATION_INTERVAL_MILLIS,
+                        USERS_STATISTICS_RECONCILIATION_TASK);
+            }
+        });
+    }
+
+    private static boolean isClustered(KeycloakSession session) {
+        InfinispanConnectionProvider infinispan = session.getProvider(InfinispanConnectionProvider.class);
+        return infinispan != null && infinispan.getCache(InfinispanConnectionProvider.USER_CACHE_NAME)
+                .getCacheManager().getCacheManagerConfiguration().isClustered();
     }
 
     @Override
     public void close() {
-        // Nothing to do
+        apiConfig.getUsersSearchIndexes().saveAll();
     }
 
     @Override
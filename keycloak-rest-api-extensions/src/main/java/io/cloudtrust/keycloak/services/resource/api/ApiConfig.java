@@ -1,7 +1,26 @@
 package io.cloudtrust.keycloak.services.resource.api;
 
+import io.cloudtrust.keycloak.services.resource.api.cache.GroupsCache;
+import io.cloudtrust.keycloak.services.resource.api.cache.PasswordHashesCache;
+import io.cloudtrust.keycloak.services.resource.api.cache.QueryCoalescer;
+import io.cloudtrust.keycloak.services.resource.api.cache.RolesCache;
+import io.cloudtrust.keycloak.services.resource.api.cache.UsersCountCache;
+import io.cloudtrust.keycloak.services.resource.api.cache.UsersStatisticsCache;
+import io.cloudtrust.keycloak.services.resource.api.cache.UsersTimelineCache;
+import io.cloudtrust.keycloak.services.resource.api.index.UsersSearchIndexes;
+
 public class ApiConfig {
     private long termsOfUseAcceptanceDelay;
+    private boolean usersWindowedCountEnabled = true;
+    private boolean windowFunctionsSupported;
+    private final UsersCountCache usersCountCache = new UsersCountCache();
+    private final UsersSearchIndexes usersSearchIndexes = new UsersSearchIndexes();
+    private final GroupsCache groupsCache = new GroupsCache();
+    private final RolesCache rolesCache = new RolesCache();
+    private final UsersStatisticsCache usersStatisticsCache = new UsersStatisticsCache();
+    private final QueryCoalescer queryCoalescer = new QueryCoalescer();
+    private final UsersTimelineCache usersTimelineCache = new UsersTimelineCache();
+    private final PasswordHashesCache passwordHashesCache = new PasswordHashesCache();
 
     public long getTermsOfUseAcceptanceDelayMillis() {
         return termsOfUseAcceptanceDelay;
@@ -10,4 +29,121 @@ public class ApiConfig {
     public void setTermsOfUseAcceptanceDelayMillis(long delay) {
         this.termsOfUseAcceptanceDelay = delay;
     }
+
+    /**
+     * @return how long a cached users count can be used, changes made on other nodes being ignored
+     */
+    public long getUsersCountMaxStalenessMillis() {
+        return usersCountCache.getMaxAgeMillis();
+    }
+
+    public void setUsersCountMaxStalenessMillis(long maxStaleness) {
+        usersCountCache.setMaxAgeMillis(maxStaleness);
+    }
+
+    public UsersCountCache getUsersCountCache() {
+        return usersCountCache;
+    }
+
+    /**
+     * @return whether a page of users and its total count are fetched by a single statement when the database supports
+     * window functions
+     */
+    public boolean isUsersWindowedCountEnabled() {
+        return usersWindowedCountEnabled;
+    }
+
+    public void setUsersWindowedCountEnabled(boolean enabled) {
+        this.usersWindowedCountEnabled = enabled;
+    }
+
+    /**
+     * @return whether the dialect of the database supports window functions
+     */
+    public boolean isWindowFunctionsSupported() {
+        return windowFunctionsSupported;
+    }
+
+    public void setWindowFunctionsSupported(boolean supported) {
+        this.windowFunctionsSupported = supported;
+    }
+
+    /**
+     * @return whether a page of users and its total count are fetched by a single statement
+     */
+    public boolean isUsersWindowedCountUsed() {
+        return usersWindowedCountEnabled && windowFunctionsSupported;
+    }
+
+    public UsersSearchIndexes getUsersSearchIndexes() {
+        return usersSearchIndexes;
+    }
+
+    /**
+     * @return how long the cached groups hierarchy of a realm can be used, changes made on other nodes being ignored
+     */
+    public long getGroupsMaxStalenessMillis() {
+        return groupsCache.getMaxAgeMillis();
+    }
+
+    public void setGroupsMaxStalenessMillis(long maxStaleness) {
+        groupsCache.setMaxAgeMillis(maxStaleness);
+    }
+
+    public GroupsCache getGroupsCache() {
+        return groupsCache;
+    }
+
+    /**
+     * @return how long the cached roles graph of a realm can be used, changes made on other nodes being ignored
+     */
+    public long getRolesMaxStalenessMillis() {
+        return rolesCache.getMaxAgeMillis();
+    }
+
+    public void setRolesMaxStalenessMillis(long maxStaleness) {
+        rolesCache.setMaxAgeMillis(maxStaleness);
+    }
+
+    public RolesCache getRolesCache() {
+        return rolesCache;
+    }
+
+    /**
+     * @return how long the users statistics of a realm can be used, changes made on other nodes being ignored
+     */
+    public long getUsersStatisticsMaxStalenessMillis() {
+        return usersStatisticsCache.getMaxAgeMillis();
+    }
+
+    public void setUsersStatisticsMaxStalenessMillis(long maxStaleness) {
+        usersStatisticsCache.setMaxAgeMillis(maxStaleness);
+    }
+
+    public UsersStatisticsCache getUsersStatisticsCache() {
+        return usersStatisticsCache;
+    }
+
+    /**
+     * @return how long the result of a coalesced query can be reused by later requests
+     */
+    public long getCoalescedQueriesReuseMillis() {
+        return queryCoalescer.getReuseMillis();
+    }
+
+    public void setCoalescedQueriesReuseMillis(long reuseMillis) {
+        queryCoalescer.setReuseMillis(reuseMillis);
+    }
+
+    public QueryCoalescer getQueryCoalescer() {
+        return queryCoalescer;
+    }
+
+    public UsersTimelineCache getUsersTimelineCache() {
+        return usersTimelineCache;
+    }
+
+    public PasswordHashesCache getPasswordHashesCache() {
+        return passwordHashesCache;
+    }
 }
@@ -3,6 +3,7 @@ package io.cloudtrust.keycloak.services.resource.api.admin;
 import io.cloudtrust.keycloak.representations.idm.DeletableUserRepresentation;
 import io.cloudtrust.keycloak.services.resource.JpaResultCaster;
 import io.cloudtrust.keycloak.services.resource.api.ApiConfig;
+import io.cloudtrust.keycloak.services.resource.api.cache.UsersStatisticsCache;
 import io.cloudtrust.keycloak.services.resource.api.model.EmailInfo;
 import jakarta.persistence.EntityManager;
 import jakarta.ws.rs.BadRequestException;
@@ -15,8 +16,10 @@ import jakarta.ws.rs.Produces;
 import jakarta.ws.rs.QueryParam;
 import jakarta.ws.rs.core.HttpHeaders;
 import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Response;
 import org.apache.commons.lang3.StringUtils;
 import org.jboss.logging.Logger;
+import org.jboss.resteasy.reactive.NoCache;
 import org.keycloak.common.util.Encode;
 import org.keycloak.connections.jpa.JpaConnectionProvider;
 import org.keycloak.http.HttpRequest;
@@ -36,8 +39,17 @@ import org.keycloak.services.resources.admin.permissions.AdminPermissionEvaluato
 import org.keycloak.services.resources.admin.permissions.AdminPermissions;
 
 import java.math.BigInteger;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 public class CtAdminRoot {
     protected static final Logger logger = Logger.getLogger(CtAdminRoot.class);
@@ -75,7 +87,7 @@ public class CtAdminRoot {
         logger.debugf(MSG_AUTH_ADMIN_ACCESS, auth.getUser().getUsername());
         Cors.builder().allowedOrigins(auth.getToken()).allowedMethods("GET", "PUT", "POST", "DELETE").exposedHeaders("Location").auth().add();
 
-        return new CtRealmsAdminResource(auth, session);
+        return new CtRealmsAdminResource(auth, session, apiConfig);
     }
 
     /**
@@ -158,6 +170,15 @@ public class CtAdminRoot {
             throw new BadRequestException("email");
         }
 
+        // Concurrent requests for the same email share the query
+        List<EmailInfo> result = apiConfig.getQueryCoalescer().execute("support-infos", email.toLowerCase(Locale.ROOT), () -> findEmailInfos(email));
+        if (result.isEmpty()) {
+            throw new NotFoundException("email");
+        }
+        return result;
+    }
+
+    private List<EmailInfo> findEmailInfos(String email) {
         EntityManager em = session.getProvider(JpaConnectionProvider.class).getEntityManager();
         @SuppressWarnings("unchecked")
         List<Object[]> result = em.createNativeQuery("select r.NAME, ue.CREATED_TIMESTAMP "
@@ -166,12 +187,57 @@ public class CtAdminRoot {
                         + "where lower(ue.EMAIL)=lower(:email)")
                 .setParameter("email", email)
                 .getResultList();
-        if (result.isEmpty()) {
-            throw new NotFoundException("email");
-        }
         return result.stream().map(this::createEmailInfo).toList();
     }
 
+    /**
+     * Get the users and credentials statistics of several realms. The counters of all the realms are computed by a few
+     * grouped queries, then the representation of each realm is built and written one after the other.
+     *
+     * @param realmNames Names of the realms, all the realms when empty. Unknown realms are ignored.
+     * @return the statistics by realm name, streamed
+     */
+    @Path("statistics")
+    @GET
+    @NoCache
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response getRealmsStatistics(@QueryParam("realm") List<String> realmNames) {
+        HttpRequest request = this.session.getContext().getHttpRequest();
+        AdminAuth auth = authenticateRealmAdminRequest(request.getHttpHeaders());
+        if (auth == null) {
+            throw new NotAuthorizedException("unauthorized");
+        }
+
+        logger.debugf(MSG_AUTH_ADMIN_ACCESS, auth.getUser().getUsername());
+        Cors.builder().allowedOrigins(auth.getToken()).allowedMethods("GET", "PUT", "POST", "DELETE").exposedHeaders("Location").auth().add();
+
+        // Check rights
+        RealmManager realmManager = new RealmManager(session);
+        RealmModel realm = realmManager.getKeycloakAdminstrationRealm();
+        AdminPermissionEvaluator realmAuth = AdminPermissions.evaluator(session, realm, auth);
+        realmAuth.users().requireView();
+
+        // Realm name by id, sorted by name
+        Set<String> requested = realmNames == null ? Set.of() : new HashSet<>(realmNames);
+        Map<String, String> names = session.realms().getRealmsStream()
+                .filter(r -> requested.isEmpty() || requested.contains(r.getName()))
+                .sorted(Comparator.comparing(RealmModel::getName))
+                .collect(Collectors.toMap(RealmModel::getId, RealmModel::getName, (a, b) -> a, LinkedHashMap::new));
+        if (names.isEmpty()) {
+            return Response.ok(new RealmsStatisticsWriter(Map.of()), MediaType.APPLICATION_JSON_TYPE).build();
+        }
+
+        // All the realms are aggregated by the same grouped queries
+        Collection<String> realmIds = requested.isEmpty() ? null : names.keySet();
+        Map<String, UsersStatisticsCache.Counters> counters = apiConfig.getQueryCoalescer().execute("realms-statistics",
+                realmIds == null ? "*" : String.join(",", new TreeSet<>(realmIds)),
+                () -> UsersStatisticsCache.loadRealms(session, realmIds));
+
+        Map<String, UsersStatisticsCache.Counters> res = new LinkedHashMap<>();
+        names.forEach((id, name) -> res.put(name, counters.getOrDefault(id, UsersStatisticsCache.Counters.empty())));
+        return Response.ok(new RealmsStatisticsWriter(res), MediaType.APPLICATION_JSON_TYPE).build();
+    }
+
     private EmailInfo createEmailInfo(Object[] row) {
         EmailInfo res = new EmailInfo();
         res.setRealm(JpaResultCaster.toString(row[0]));
@@ -2,6 +2,7 @@ package io.cloudtrust.keycloak.services.resource.api.admin;
 
 import io.cloudtrust.keycloak.email.EmailSender;
 import io.cloudtrust.keycloak.email.model.EmailModel;
+import io.cloudtrust.keycloak.services.resource.api.ApiConfig;
 import org.apache.commons.lang3.StringUtils;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.RealmModel;
@@ -24,20 +25,22 @@ public class CtRealmAdminResource {
     private final AdminPermissionEvaluator auth;
     private final AdminEventBuilder adminEvent;
     private final KeycloakSession session;
+    private final ApiConfig apiConfig;
 
-    public CtRealmAdminResource(AdminPermissionEvaluator auth, AdminEventBuilder adminEvent, KeycloakSession session) {
+    public CtRealmAdminResource(AdminPermissionEvaluator auth, AdminEventBuilder adminEvent, KeycloakSession session, ApiConfig apiConfig) {
         this.auth = auth;
         this.adminEvent = adminEvent;
         this.session = session;
+        this.apiConfig = apiConfig;
     }
 
     @Path("users")
     public CtUsersResource users() {
-        return new CtUsersResource(session, auth, adminEvent);
+        return new CtUsersResource(session, auth, adminEvent, apiConfig);
     }
 
     @Path("statistics")
     public StatisticsResource statistics() {
-        return new StatisticsResource(session, auth);
+        return new StatisticsResource(session, auth, apiConfig);
     }
 }
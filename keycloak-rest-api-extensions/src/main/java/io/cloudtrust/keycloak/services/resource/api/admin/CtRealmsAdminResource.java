@@ -1,5 +1,6 @@
 package io.cloudtrust.keycloak.services.resource.api.admin;
 
+import io.cloudtrust.keycloak.services.resource.api.ApiConfig;
 import jakarta.ws.rs.ForbiddenException;
 import jakarta.ws.rs.NotFoundException;
 import jakarta.ws.rs.Path;
@@ -17,10 +18,12 @@ import org.keycloak.services.resources.admin.permissions.AdminPermissions;
 public class CtRealmsAdminResource {
     private KeycloakSession session;
     private AdminAuth auth;
+    private ApiConfig apiConfig;
 
-    public CtRealmsAdminResource(AdminAuth auth, KeycloakSession session) {
+    public CtRealmsAdminResource(AdminAuth auth, KeycloakSession session, ApiConfig apiConfig) {
         this.auth = auth;
         this.session = session;
+        this.apiConfig = apiConfig;
     }
 
     /**
@@ -45,6 +48,6 @@ public class CtRealmsAdminResource {
         AdminEventBuilder adminEvent = new AdminEventBuilder(realm, auth, session, clientConnection);
         session.getContext().setRealm(realm);
 
-        return new CtRealmAdminResource(realmAuth, adminEvent, session);
+        return new CtRealmAdminResource(realmAuth, adminEvent, session, apiConfig);
     }
 }
@@ -1,7 +1,13 @@
 package io.cloudtrust.keycloak.services.resource.api.admin;
 
+import io.cloudtrust.keycloak.representations.idm.UsersLookupRepresentation;
+import io.cloudtrust.keycloak.representations.idm.UsersLookupResultRepresentation;
 import io.cloudtrust.keycloak.representations.idm.UsersPageRepresentation;
+import io.cloudtrust.keycloak.services.resource.api.ApiConfig;
+import io.cloudtrust.keycloak.services.resource.api.cache.GroupsCache;
+import io.cloudtrust.keycloak.services.resource.api.cache.RolesCache;
 import io.quarkus.logging.Log;
+import jakarta.ws.rs.BadRequestException;
 import jakarta.ws.rs.Consumes;
 import jakarta.ws.rs.ForbiddenException;
 import jakarta.ws.rs.GET;
@@ -11,6 +17,7 @@ import jakarta.ws.rs.Path;
 import jakarta.ws.rs.PathParam;
 import jakarta.ws.rs.Produces;
 import jakarta.ws.rs.QueryParam;
+import jakarta.ws.rs.core.HttpHeaders;
 import jakarta.ws.rs.core.MediaType;
 import jakarta.ws.rs.core.Response;
 import org.apache.commons.lang3.BooleanUtils;
@@ -22,6 +29,7 @@ import org.keycloak.common.util.CollectionUtil;
 import org.keycloak.events.admin.OperationType;
 import org.keycloak.events.admin.ResourceType;
 import org.keycloak.models.Constants;
+import org.keycloak.models.FederatedIdentityModel;
 import org.keycloak.models.GroupModel;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.ModelDuplicateException;
@@ -46,18 +54,28 @@ import org.keycloak.userprofile.UserProfileProvider;
 import org.keycloak.utils.SearchQueryUtils;
 
 import java.text.MessageFormat;
+import java.time.LocalDate;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.Properties;
+import java.util.Set;
 import java.util.UUID;
 import java.util.function.Consumer;
-import java.util.stream.Stream;
+import java.util.function.Function;
+import java.util.function.UnaryOperator;
+import java.util.stream.Collectors;
 
 import static org.keycloak.models.utils.KeycloakModelUtils.findGroupByPath;
 import static org.keycloak.userprofile.UserProfileContext.USER_API;
@@ -66,11 +84,13 @@ public class CtUsersResource {
     private final AdminPermissionEvaluator auth;
     private final AdminEventBuilder adminEvent;
     private final KeycloakSession session;
+    private final ApiConfig apiConfig;
 
-    public CtUsersResource(KeycloakSession session, AdminPermissionEvaluator auth, AdminEventBuilder adminEvent) {
+    public CtUsersResource(KeycloakSession session, AdminPermissionEvaluator auth, AdminEventBuilder adminEvent, ApiConfig apiConfig) {
         this.session = session;
         this.auth = auth;
         this.adminEvent = adminEvent.resource(ResourceType.USER);
+        this.apiConfig = apiConfig;
     }
 
     /**
@@ -235,6 +255,97 @@ public class CtUsersResource {
         return res;
     }
 
+    /**
+     * Look up users
+     * <p>
+     * Cloudtrust specific: resolves up to 1000 ids, usernames or emails at once, each kind of value with one IN query
+     * (per chunk of values). Values matching no user the admin can view are returned as misses.
+     *
+     * @param lookup              Ids, usernames and emails of the users
+     * @param briefRepresentation Should the API return a brief representation or the standard one
+     * @return the users and the values which matched no user
+     */
+    @POST
+    @NoCache
+    @Path("lookup")
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces(MediaType.APPLICATION_JSON)
+    public UsersLookupResultRepresentation lookupUsers(final UsersLookupRepresentation lookup,
+                                                       @Parameter(description = "Boolean which defines whether brief representations are returned (default: false)") @QueryParam("briefRepresentation") Boolean briefRepresentation) {
+        UserPermissionEvaluator usersEvaluator = auth.users();
+        usersEvaluator.requireQuery();
+
+        if (lookup == null) {
+            throw ErrorResponse.error("Missing users to look up", Response.Status.BAD_REQUEST);
+        }
+        int size = sizeOf(lookup.getIds()) + sizeOf(lookup.getUsernames()) + sizeOf(lookup.getEmails());
+        if (size > MAX_LOOKUP_VALUES) {
+            throw ErrorResponse.error("At most " + MAX_LOOKUP_VALUES + " users can be looked up at once", Response.Status.BAD_REQUEST);
+        }
+
+        RealmModel realm = this.session.getContext().getRealm();
+        Map<String, UserModel> users = new LinkedHashMap<>();
+        UsersLookupRepresentation misses = new UsersLookupRepresentation();
+        lookupUsers(realm, usersEvaluator, "id", lookup.getIds(), false, UserModel::getId, users, misses.getIds());
+        lookupUsers(realm, usersEvaluator, "username", lookup.getUsernames(), true, UserModel::getUsername, users, misses.getUsernames());
+        lookupUsers(realm, usersEvaluator, "email", lookup.getEmails(), true, UserModel::getEmail, users, misses.getEmails());
+
+        return new UsersLookupResultRepresentation(toUserRepresentation(realm, usersEvaluator, briefRepresentation, new ArrayList<>(users.values())), misses);
+    }
+
+    private static int sizeOf(Collection<String> values) {
+        return values == null ? 0 : values.size();
+    }
+
+    /**
+     * Looks up the users matching one kind of value
+     *
+     * @param field     Searched user field
+     * @param values    Values given by the caller
+     * @param lowerCase Whether the field is stored in lower case
+     * @param key       Gets the value of the field of a user
+     * @param found     Found users, by id
+     * @param misses    Filled with the values which matched no user
+     */
+    private void lookupUsers(RealmModel realm, UserPermissionEvaluator usersEvaluator, String field, Collection<String> values, boolean lowerCase,
+                             Function<UserModel, String> key, Map<String, UserModel> found, List<String> misses) {
+        if (values == null || values.isEmpty()) {
+            return;
+        }
+        // Searched value -> value given by the caller
+        Map<String, String> searched = new LinkedHashMap<>();
+        for (String value : values) {
+            if (StringUtils.isNotBlank(value)) {
+                String trimmed = value.trim();
+                searched.putIfAbsent(lowerCase ? trimmed.toLowerCase(Locale.ROOT) : trimmed, value);
+            }
+        }
+        Set<String> matched = new HashSet<>();
+        if (!searched.isEmpty()) {
+            boolean canViewGlobal = usersEvaluator.canView();
+            for (UserModel user : GetUsersQuery.lookupUsers(session, realm, field, searched.keySet())) {
+                String userKey = key.apply(user);
+                if (userKey != null && (canViewGlobal || usersEvaluator.canView(user))) {
+                    found.putIfAbsent(user.getId(), user);
+                    matched.add(lowerCase ? userKey.toLowerCase(Locale.ROOT) : userKey);
+                }
+            }
+        }
+        searched.forEach((value, given) -> {
+            if (!matched.contains(value)) {
+                misses.add(given);
+            }
+        });
+    }
+
+    /**
+     * @return the users search index of the realm
+     */
+    @Path("search-index")
+    public UsersSearchIndexResource searchIndex() {
+        return new UsersSearchIndexResource(session, auth, apiConfig.getUsersSearchIndexes());
+    }
+
     /**
      * Get representation of the user
      *
@@ -255,6 +366,8 @@ public class CtUsersResource {
 
     // Comes from Keycloak file UsersResource.java
     private static final String SEARCH_ID_PARAMETER = "id:";
+    private static final String NDJSON = "application/x-ndjson";
+    private static final int MAX_LOOKUP_VALUES = 1000;
 
     /*
     // For a later use, this method let the caller only get a count of matching users
@@ -329,7 +442,9 @@ public class CtUsersResource {
      * If either groups or roles are specified in the call, paging with "first" and/or "max" is impossible, and trying will return a 501.
      *
      * @param groups              A list of group Ids
+     * @param includeSubgroups    Whether the users of the subgroups of the groups are returned
      * @param roles               A list of realm role names
+     * @param effective           Whether the users having the roles through a composite role or a group are returned
      * @param search              A special search field: when used, all other search fields are ignored. Can be something like id:abcd-efg-123
      *                            or a string which can be contained in the first+last name, email or username
      * @param lastName            A user's last name
@@ -339,74 +454,380 @@ public class CtUsersResource {
      * @param emailVerified       Shall the email be verified or not?
      * @param idpAlias            The alias of an Identity Provider linked to the user
      * @param idpUserId           The userId at an Identity Provider linked to the user
-     * @param firstResult         Pagination offset
+     * @param firstResult         Pagination offset, ignored when a cursor is provided
      * @param maxResults          Maximum results size (defaults to 100) - only taken into account if no group / role is defined
+     * @param after               Keyset pagination: cursor returned as "next" by the previous page
+     * @param sort                Sort order: username (default), createdTimestamp or email
+     * @param countMode           How the total count is computed: exact (default), cached (recently computed count of the same search) or none
+     * @param createdAfter        Users created at or after this date
+     * @param createdBefore       Users created before this date
+     * @param requiredAction      Users having this pending required action
+     * @param credentialType      Users having a credential of this type
+     * @param missingCredentialType Users having no credential of this type
      * @param briefRepresentation Should the API return a brief representation or the standard one
+     * @param fields              Sparse fieldset: comma separated list of the returned fields
      * @param exact               Boolean which defines whether the params "last", "first", "email" and "username" must match exactly
      * @param searchQuery         A query to search for custom attributes, in the format 'key1:value2 key2:value2'
-     * @return a non-null {@code Stream} of users
+     * @param facets              Comma separated list of facets: count of the matching users by enabled flag, email
+     *                            verified flag or identity provider
+     * @param includeGroups       Whether the paths of the groups of each user are returned
+     * @return the page of users
      */
     @GET
     @NoCache
     @Produces(MediaType.APPLICATION_JSON)
-    public UsersPageRepresentation getUsers(@QueryParam("groupId") List<String> groups,
-                                            @QueryParam("roleId") List<String> roles,
-                                            @Parameter(description = "A String contained in username, first or last name, or email. Default search behavior is prefix-based (e.g., foo or foo*). Use *foo* for infix search and \"foo\" for exact search.") @QueryParam("search") String search,
-                                            @Parameter(description = "A String contained in lastName, or the complete lastName, if param \"exact\" is true") @QueryParam("lastName") String last,
-                                            @Parameter(description = "A String contained in firstName, or the complete firstName, if param \"exact\" is true") @QueryParam("firstName") String first,
-                                            @Parameter(description = "A String contained in email, or the complete email, if param \"exact\" is true") @QueryParam("email") String email,
-                                            @Parameter(description = "A String contained in username, or the complete username, if param \"exact\" is true") @QueryParam("username") String username,
-                                            @Parameter(description = "whether the email has been verified") @QueryParam("emailVerified") Boolean emailVerified,
-                                            @Parameter(description = "The alias of an Identity Provider linked to the user") @QueryParam("idpAlias") String idpAlias,
-                                            @Parameter(description = "The userId at an Identity Provider linked to the user") @QueryParam("idpUserId") String idpUserId,
-                                            @Parameter(description = "Pagination offset") @QueryParam("first") Integer firstResult,
-                                            @Parameter(description = "Maximum results size (defaults to 100)") @QueryParam("max") Integer maxResults,
-                                            @Parameter(description = "Boolean representing if user is enabled or not") @QueryParam("enabled") Boolean enabled,
-                                            @Parameter(description = "Boolean which defines whether brief representations are returned (default: false)") @QueryParam("briefRepresentation") Boolean briefRepresentation,
-                                            @Parameter(description = "Boolean which defines whether the params \"last\", \"first\", \"email\" and \"username\" must match exactly") @QueryParam("exact") Boolean exact,
-                                            @Parameter(description = "A query to search for custom attributes, in the format 'key1:value2 key2:value2'") @QueryParam("q") String searchQuery) {
+    public Response getUsers(@QueryParam("groupId") List<String> groups,
+                             @Parameter(description = "Boolean which defines whether the users of the subgroups of the groups are returned (default: false)") @QueryParam("includeSubgroups") Boolean includeSubgroups,
+                             @QueryParam("roleId") List<String> roles,
+                             @Parameter(description = "Boolean which defines whether the users having the roles through a composite role or a group are returned (default: false)") @QueryParam("effective") Boolean effective,
+                             @Parameter(description = "A String contained in username, first or last name, or email. Default search behavior is prefix-based (e.g., foo or foo*). Use *foo* for infix search and \"foo\" for exact search.") @QueryParam("search") String search,
+                             @Parameter(description = "A String contained in lastName, or the complete lastName, if param \"exact\" is true") @QueryParam("lastName") String last,
+                             @Parameter(description = "A String contained in firstName, or the complete firstName, if param \"exact\" is true") @QueryParam("firstName") String first,
+                             @Parameter(description = "A String contained in email, or the complete email, if param \"exact\" is true") @QueryParam("email") String email,
+                             @Parameter(description = "A String contained in username, or the complete username, if param \"exact\" is true") @QueryParam("username") String username,
+                             @Parameter(description = "whether the email has been verified") @QueryParam("emailVerified") Boolean emailVerified,
+                             @Parameter(description = "The alias of an Identity Provider linked to the user") @QueryParam("idpAlias") String idpAlias,
+                             @Parameter(description = "The userId at an Identity Provider linked to the user") @QueryParam("idpUserId") String idpUserId,
+                             @Parameter(description = "Pagination offset") @QueryParam("first") Integer firstResult,
+                             @Parameter(description = "Maximum results size (defaults to 100)") @QueryParam("max") Integer maxResults,
+                             @Parameter(description = "Cursor returned as \"next\" by the previous page. When used, \"first\" is ignored") @QueryParam("after") String after,
+                             @Parameter(description = "Sort order: username (default), createdTimestamp or email") @QueryParam("sort") String sort,
+                             @Parameter(description = "How the total count is computed: exact (default), cached or none. With none, only \"hasMore\" is returned") @QueryParam("countMode") String countMode,
+                             @Parameter(description = "Boolean representing if user is enabled or not") @QueryParam("enabled") Boolean enabled,
+                             @Parameter(description = "Users created at or after this date: timestamp in milliseconds, ISO-8601 date or date-time") @QueryParam("createdAfter") String createdAfter,
+                             @Parameter(description = "Users created before this date: timestamp in milliseconds, ISO-8601 date or date-time") @QueryParam("createdBefore") String createdBefore,
+                             @Parameter(description = "Users having this pending required action") @QueryParam("requiredAction") String requiredAction,
+                             @Parameter(description = "Users having a credential of this type") @QueryParam("credentialType") String credentialType,
+                             @Parameter(description = "Users having no credential of this type") @QueryParam("missingCredentialType") String missingCredentialType,
+                             @Parameter(description = "Boolean which defines whether brief representations are returned (default: false)") @QueryParam("briefRepresentation") Boolean briefRepresentation,
+                             @Parameter(description = "Comma separated list of the returned fields, like id,username,email,attributes.phoneNumber. The id and the sort field are always returned. When used, briefRepresentation is ignored") @QueryParam("fields") String fields,
+                             @Parameter(description = "Boolean which defines whether the params \"last\", \"first\", \"email\" and \"username\" must match exactly") @QueryParam("exact") Boolean exact,
+                             @Parameter(description = "A query to search for custom attributes, in the format 'key1:value2 key2:value2'") @QueryParam("q") String searchQuery,
+                             @Parameter(description = "Comma separated list of facets counted for the search: enabled, emailVerified, idpAlias") @QueryParam("facets") String facets,
+                             @Parameter(description = "Boolean which defines whether the paths of the groups of each user are returned (default: false)") @QueryParam("includeGroups") Boolean includeGroups) {
         UserPermissionEvaluator userPermissionEvaluator = auth.users();
         userPermissionEvaluator.requireQuery();
 
         firstResult = firstResult != null ? firstResult : -1;
         maxResults = maxResults != null ? maxResults : Constants.DEFAULT_MAX_RESULTS;
 
+        UsersSortOrder sortOrder = UsersSortOrder.fromParameter(sort);
+        UsersCountMode usersCountMode = UsersCountMode.fromParameter(countMode);
+        UsersFields usersFields = UsersFields.fromParameter(fields, sortOrder);
+        Set<UsersFacet> usersFacets = UsersFacet.fromParameter(facets);
+        UsersCursor cursor = after == null ? null : UsersCursor.decode(after, sortOrder);
+        if (cursor != null) {
+            firstResult = -1;
+        }
+
+        RealmModel realm = this.session.getContext().getRealm();
+        if (search != null && search.startsWith(SEARCH_ID_PARAMETER)) {
+            UserModel userModel = session.users().getUserById(realm, search.substring(SEARCH_ID_PARAMETER.length()).trim());
+            List<UserModel> userModels = userModel == null ? List.of() : List.of(userModel);
+            List<UserRepresentation> users = toUserRepresentation(realm, userPermissionEvaluator, briefRepresentation, userModels).stream()
+                    .map(groupPathsSetter(realm, includeGroups, userIds(userModels)))
+                    .toList();
+            return Response.ok(toKeyLookupPage(users, usersCountMode)).build();
+        }
+
+        boolean otherCriteria = !CollectionUtil.isEmpty(groups) || !CollectionUtil.isEmpty(roles) || search != null || StringUtils.isNotBlank(searchQuery)
+                || StringUtils.isNotBlank(last) || StringUtils.isNotBlank(first) || emailVerified != null || enabled != null
+                || createdAfter != null || createdBefore != null || requiredAction != null || credentialType != null || missingCredentialType != null;
+        if (!otherCriteria && usersFields == null && usersFacets.isEmpty() && cursor == null && firstResult <= 0 && maxResults != 0) {
+            List<UserModel> userModels = lookupUniqueKey(realm, username, email, idpAlias, idpUserId, exact);
+            if (userModels != null) {
+                List<UserRepresentation> users = toUserRepresentation(realm, userPermissionEvaluator, briefRepresentation, userModels).stream()
+                        .map(groupPathsSetter(realm, includeGroups, userIds(userModels)))
+                        .toList();
+                return Response.ok(toKeyLookupPage(users, usersCountMode)).build();
+            }
+        }
+
+        if (!userPermissionEvaluator.canView()) {
+            restrictToViewableGroups(realm);
+        }
+
+        Map<String, String> attributes = getSearchAttributes(groups, includeSubgroups, roles, effective, search, last, first, email, username, emailVerified,
+                idpAlias, idpUserId, enabled, exact, searchQuery);
+        addStateFilters(attributes, createdAfter, createdBefore, requiredAction, credentialType, missingCredentialType);
+
+        if (usersFields != null) {
+            UsersPageRepresentation res = getUserFieldsPage(realm, userPermissionEvaluator, attributes, usersFields, sortOrder, cursor, firstResult, maxResults, usersCountMode);
+            setFacets(res, realm, attributes, usersFacets);
+            UnaryOperator<UserRepresentation> groupPaths = groupPathsSetter(realm, includeGroups,
+                    res.getUsers().stream().map(UserRepresentation::getId).collect(Collectors.toSet()));
+            res.getUsers().forEach(groupPaths::apply);
+            return Response.ok(res).build();
+        }
+
+        // Page and count are fetched with a single statement when possible
+        GetUsersQuery.Page<UserModel> page = GetUsersQuery.searchForUsersPage(session, realm, attributes, sortOrder, cursor, firstResult, maxResults,
+                usersCountMode, apiConfig.getUsersCountCache(), apiConfig.isUsersWindowedCountUsed());
+
+        // The cursor is located on the last fetched user, whether or not the admin can view it
+        List<UserModel> pageModels = page.users();
+        UsersPageRepresentation res = new UsersPageRepresentation(null, page.count());
+        res.setHasMore(page.hasMore());
+        setFacets(res, realm, attributes, usersFacets);
+        if (page.next() != null) {
+            res.setNext(page.next().encode());
+        }
+        res.setUsers(toUserRepresentation(realm, userPermissionEvaluator, briefRepresentation, pageModels).stream()
+                .map(groupPathsSetter(realm, includeGroups, userIds(pageModels)))
+                .toList());
+        return Response.ok(res).build();
+    }
+
+    private static Set<String> userIds(List<UserModel> users) {
+        return users.stream().map(UserModel::getId).collect(Collectors.toSet());
+    }
+
+    /**
+     * Cloudtrust specific: the group memberships of the whole page are loaded with a single query and the group ids are
+     * resolved to paths with the groups hierarchy cached by the node, instead of one groups request per user.
+     *
+     * @param includeGroups Whether the groups are requested
+     * @param userIds       Identifiers of the users of the page
+     * @return sets the sorted paths of the groups of a user representation
+     */
+    private UnaryOperator<UserRepresentation> groupPathsSetter(RealmModel realm, Boolean includeGroups, Set<String> userIds) {
+        if (!BooleanUtils.isTrue(includeGroups)) {
+            return UnaryOperator.identity();
+        }
+        Map<String, List<String>> groupIds = GetUsersQuery.loadGroupIds(session, userIds);
+        GroupsCache groupsCache = apiConfig.getGroupsCache();
+        GroupsCache.GroupTree cachedTree = groupsCache.get(session, realm.getId());
+        if (groupIds.values().stream().flatMap(List::stream).anyMatch(groupId -> cachedTree.getPath(groupId) == null)) {
+            // A group has been created by another node since the hierarchy was cached
+            groupsCache.invalidate(realm.getId());
+        }
+        GroupsCache.GroupTree tree = groupsCache.get(session, realm.getId());
+        return user -> {
+            user.setGroups(groupIds.getOrDefault(user.getId(), List.of()).stream()
+                    .map(tree::getPath)
+                    .filter(Objects::nonNull)
+                    .sorted()
+                    .toList());
+            return user;
+        };
+    }
+
+    /**
+     * Cloudtrust specific: facets are counted by grouped statements using the predicates of the search
+     */
+    private void setFacets(UsersPageRepresentation page, RealmModel realm, Map<String, String> attributes, Set<UsersFacet> facets) {
+        if (!facets.isEmpty()) {
+            page.setFacets(GetUsersQuery.countFacets(session, realm, attributes, facets));
+        }
+    }
+
+    /**
+     * @return the page of the users found by a key lookup, with the count requested by the count mode: the page has
+     * the same shape as the one of a search
+     */
+    private static UsersPageRepresentation toKeyLookupPage(List<UserRepresentation> users, UsersCountMode countMode) {
+        if (countMode == UsersCountMode.NONE) {
+            UsersPageRepresentation page = new UsersPageRepresentation(users, null);
+            page.setHasMore(false);
+            return page;
+        }
+        return new UsersPageRepresentation(users, users.size());
+    }
+
+    /**
+     * @return the value without its '=' prefix when it is searched exactly (prefix or exact parameter), as done by the
+     * users search query, null otherwise
+     */
+    private static String getExactValue(String value, Boolean exact) {
+        if (value.startsWith("=")) {
+            return value.substring(1);
+        }
+        return BooleanUtils.isTrue(exact) && !"%".equals(value) ? value : null;
+    }
+
+    /**
+     * Cloudtrust specific: searches of a unique key (exact username, exact email when duplicate emails are not allowed,
+     * identity provider link) are answered by the user provider, which uses the unique indexes and the users cache,
+     * without counting.
+     *
+     * @return the users matching the key (empty or singleton list), null when the search is not a unique key lookup
+     */
+    private List<UserModel> lookupUniqueKey(RealmModel realm, String username, String email, String idpAlias, String idpUserId, Boolean exact) {
+        boolean hasUsername = StringUtils.isNotBlank(username);
+        boolean hasEmail = StringUtils.isNotBlank(email);
+        boolean hasIdpAlias = StringUtils.isNotBlank(idpAlias);
+        boolean hasIdpUserId = StringUtils.isNotBlank(idpUserId);
+        // Only one key must be searched
+        if ((hasUsername ? 1 : 0) + (hasEmail ? 1 : 0) + (hasIdpAlias || hasIdpUserId ? 1 : 0) != 1) {
+            return null;
+        }
+        UserModel user;
+        if (hasUsername) {
+            String value = getExactValue(username, exact);
+            if (value == null) {
+                return null;
+            }
+            user = session.users().getUserByUsername(realm, value);
+        } else if (hasEmail) {
+            String value = getExactValue(email, exact);
+            if (value == null || realm.isDuplicateEmailsAllowed()) {
+                return null;
+            }
+            user = session.users().getUserByEmail(realm, value);
+        } else if (hasIdpAlias && hasIdpUserId) {
+            user = session.users().getUserByFederatedIdentity(realm, new FederatedIdentityModel(idpAlias, idpUserId, null));
+        } else {
+            return null;
+        }
+        return user == null ? List.of() : List.of(user);
+    }
+
+    /**
+     * Cloudtrust specific: sparse fieldset, the representations are built from the selected columns without loading
+     * the users
+     */
+    private UsersPageRepresentation getUserFieldsPage(RealmModel realm, UserPermissionEvaluator usersEvaluator, Map<String, String> attributes,
+                                                      UsersFields fields, UsersSortOrder sortOrder, UsersCursor cursor,
+                                                      int firstResult, int maxResults, UsersCountMode countMode) {
+        GetUsersQuery.Page<UserRepresentation> page = GetUsersQuery.searchForUserFieldsPage(session, realm, attributes, fields, sortOrder,
+                cursor, firstResult, maxResults, countMode, apiConfig.getUsersCountCache(), apiConfig.isUsersWindowedCountUsed());
+
+        List<UserRepresentation> pageUsers = page.users();
+        List<UserRepresentation> users = pageUsers;
+        if (!usersEvaluator.canView() && session.getAttribute(GetUsersQuery.VIEWABLE_GROUPS) == null) {
+            // Viewable users could not be restricted by the query: they are checked one by one
+            users = pageUsers.stream()
+                    .filter(user -> {
+                        UserModel userModel = session.users().getUserById(realm, user.getId());
+                        return userModel != null && usersEvaluator.canView(userModel);
+                    })
+                    .toList();
+        }
+        UsersPageRepresentation res = new UsersPageRepresentation(users, page.count());
+        res.setHasMore(page.hasMore());
+        if (page.next() != null) {
+            res.setNext(page.next().encode());
+        }
+        return res;
+    }
+
+    /**
+     * Cloudtrust specific: the groups whose members the admin can view are given to GetUsersQuery (with their subgroups,
+     * as permissions on a group apply to the members of its subgroups) instead of filtering the loaded users afterward.
+     * Fine-grained permissions V2 can also target users directly: the loaded users are then only filtered.
+     */
+    private void restrictToViewableGroups(RealmModel realm) {
+        if (realm.isAdminPermissionsEnabled()) {
+            return;
+        }
+        Set<String> groupIds = auth.groups().getGroupIdsWithViewPermission();
+        session.setAttribute(GetUsersQuery.VIEWABLE_GROUPS, groupIds.isEmpty()
+                ? groupIds
+                : apiConfig.getGroupsCache().getSubtrees(session, realm.getId(), groupIds));
+    }
+
+    /**
+     * Export users
+     * <p>
+     * Streams all the users matching the search as newline delimited JSON, one brief representation per line, ordered
+     * by id. The filters are the same as the ones of the users list. An interrupted export can be resumed by giving the
+     * id of the last received user as "after" parameter.
+     *
+     * @param after Id of the last user received by a previous export
+     * @param gzip  Whether the output is compressed (default: false)
+     * @return the users export
+     */
+    @GET
+    @NoCache
+    @Path("export")
+    @Produces(NDJSON)
+    public Response exportUsers(@QueryParam("groupId") List<String> groups,
+                                @Parameter(description = "Boolean which defines whether the users of the subgroups of the groups are exported (default: false)") @QueryParam("includeSubgroups") Boolean includeSubgroups,
+                                @QueryParam("roleId") List<String> roles,
+                                @Parameter(description = "Boolean which defines whether the users having the roles through a composite role or a group are exported (default: false)") @QueryParam("effective") Boolean effective,
+                                @Parameter(description = "A String contained in username, first or last name, or email. Default search behavior is prefix-based (e.g., foo or foo*). Use *foo* for infix search and \"foo\" for exact search.") @QueryParam("search") String search,
+                                @Parameter(description = "A String contained in lastName, or the complete lastName, if param \"exact\" is true") @QueryParam("lastName") String last,
+                                @Parameter(description = "A String contained in firstName, or the complete firstName, if param \"exact\" is true") @QueryParam("firstName") String first,
+                                @Parameter(description = "A String contained in email, or the complete email, if param \"exact\" is true") @QueryParam("email") String email,
+                                @Parameter(description = "A String contained in username, or the complete username, if param \"exact\" is true") @QueryParam("username") String username,
+                                @Parameter(description = "whether the email has been verified") @QueryParam("emailVerified") Boolean emailVerified,
+                                @Parameter(description = "The alias of an Identity Provider linked to the user") @QueryParam("idpAlias") String idpAlias,
+                                @Parameter(description = "The userId at an Identity Provider linked to the user") @QueryParam("idpUserId") String idpUserId,
+                                @Parameter(description = "Boolean representing if user is enabled or not") @QueryParam("enabled") Boolean enabled,
+                                @Parameter(description = "Users created at or after this date: timestamp in milliseconds, ISO-8601 date or date-time") @QueryParam("createdAfter") String createdAfter,
+                                @Parameter(description = "Users created before this date: timestamp in milliseconds, ISO-8601 date or date-time") @QueryParam("createdBefore") String createdBefore,
+                                @Parameter(description = "Users having this pending required action") @QueryParam("requiredAction") String requiredAction,
+                                @Parameter(description = "Users having a credential of this type") @QueryParam("credentialType") String credentialType,
+                                @Parameter(description = "Users having no credential of this type") @QueryParam("missingCredentialType") String missingCredentialType,
+                                @Parameter(description = "Boolean which defines whether the params \"last\", \"first\", \"email\" and \"username\" must match exactly") @QueryParam("exact") Boolean exact,
+                                @Parameter(description = "A query to search for custom attributes, in the format 'key1:value2 key2:value2'") @QueryParam("q") String searchQuery,
+                                @Parameter(description = "Id of the last user received by an interrupted export") @QueryParam("after") String after,
+                                @Parameter(description = "Boolean which defines whether the export is gzip compressed (default: false)") @QueryParam("gzip") Boolean gzip) {
+        auth.users().requireView();
+
+        RealmModel realm = this.session.getContext().getRealm();
+        Map<String, String> attributes = getSearchAttributes(groups, includeSubgroups, roles, effective, search, last, first, email, username, emailVerified,
+                idpAlias, idpUserId, enabled, exact, searchQuery);
+        addStateFilters(attributes, createdAfter, createdBefore, requiredAction, credentialType, missingCredentialType);
+
+        boolean compressed = BooleanUtils.isTrue(gzip);
+        Response.ResponseBuilder response = Response.ok(new UsersExporter(session, realm, attributes, StringUtils.trimToNull(after), compressed), NDJSON);
+        if (compressed) {
+            response.header(HttpHeaders.CONTENT_ENCODING, "gzip");
+        }
+        return response.build();
+    }
+
+    /**
+     * Converts the search parameters to GetUsersQuery attributes. Groups, roles and service accounts inclusion are set
+     * as session attributes as expected by GetUsersQuery.
+     *
+     * @return the search attributes
+     */
+    private Map<String, String> getSearchAttributes(List<String> groups, Boolean includeSubgroups, List<String> roles, Boolean effective,
+                                                    String search, String last, String first,
+                                                    String email, String username, Boolean emailVerified, String idpAlias, String idpUserId,
+                                                    Boolean enabled, Boolean exact, String searchQuery) {
         Map<String, String> searchAttributes = searchQuery == null
                 ? Collections.emptyMap()
                 : SearchQueryUtils.getFields(searchQuery);
 
         if (!CollectionUtil.isEmpty(groups)) {
-            session.setAttribute(UserModel.GROUPS, new HashSet<>(groups));
+            Set<String> groupIds = BooleanUtils.isTrue(includeSubgroups)
+                    ? apiConfig.getGroupsCache().getSubtrees(session, session.getContext().getRealm().getId(), groups)
+                    : new HashSet<>(groups);
+            session.setAttribute(UserModel.GROUPS, groupIds);
         }
         if (!CollectionUtil.isEmpty(roles)) {
-            session.setAttribute("filterRoles", new HashSet<>(roles));
+            if (BooleanUtils.isTrue(effective)) {
+                // Composites including the roles and groups granting them (to their subgroups too) come from the node caches
+                String realmId = session.getContext().getRealm().getId();
+                RolesCache.RoleGraph roleGraph = apiConfig.getRolesCache().get(session, realmId);
+                Set<String> roleIds = roleGraph.getEffectiveRoles(roles);
+                session.setAttribute(GetUsersQuery.FILTER_ROLES, roleIds);
+                Set<String> roleGroups = roleGraph.getGroups(roleIds);
+                if (!roleGroups.isEmpty()) {
+                    session.setAttribute(GetUsersQuery.FILTER_ROLE_GROUPS, apiConfig.getGroupsCache().getSubtrees(session, realmId, roleGroups));
+                }
+            } else {
+                session.setAttribute(GetUsersQuery.FILTER_ROLES, new HashSet<>(roles));
+            }
         }
 
-        RealmModel realm = this.session.getContext().getRealm();
-        Stream<UserModel> userModels = Stream.empty();
-        int count = 0;
+        Map<String, String> attributes = new HashMap<>();
         if (search != null) {
-            if (search.startsWith(SEARCH_ID_PARAMETER)) {
-                UserModel userModel = session.users().getUserById(realm, search.substring(SEARCH_ID_PARAMETER.length()).trim());
-                if (userModel != null) {
-                    count = 1;
-                    userModels = Stream.of(userModel);
-                }
-            } else {
-                Map<String, String> attributes = new HashMap<>();
-                attributes.put(UserModel.SEARCH, search.trim());
-                if (enabled != null) {
-                    attributes.put(UserModel.ENABLED, enabled.toString());
-                }
-                session.setAttribute(UserModel.INCLUDE_SERVICE_ACCOUNT, false);
-                count = GetUsersQuery.countUsers(session, realm, attributes);
-                if (count > 0) {
-                    userModels = GetUsersQuery.searchForUserStream(session, realm, attributes, firstResult, maxResults);
-                }
+            attributes.put(UserModel.SEARCH, search.trim());
+            // Cloudtrust specific: infix and multi-token searches are resolved by the search index when it is complete
+            Collection<String> searchIds = apiConfig.getUsersSearchIndexes().search(session, session.getContext().getRealm(), search);
+            if (searchIds != null) {
+                session.setAttribute(GetUsersQuery.SEARCH_IDS, new HashSet<>(searchIds));
+            }
+            if (enabled != null) {
+                attributes.put(UserModel.ENABLED, enabled.toString());
             }
+            session.setAttribute(UserModel.INCLUDE_SERVICE_ACCOUNT, false);
         } else if (last != null || first != null || email != null || username != null || emailVerified != null
                 || idpAlias != null || idpUserId != null || enabled != null || exact != null || !searchAttributes.isEmpty()) {
-            Map<String, String> attributes = new HashMap<>();
             addWhenNotBlank(attributes, UserModel.LAST_NAME, last);
             addWhenNotBlank(attributes, UserModel.FIRST_NAME, first);
             addWhenNotBlank(attributes, UserModel.EMAIL, email);
@@ -419,19 +840,46 @@ public class CtUsersResource {
 
             attributes.putAll(searchAttributes);
             session.setAttribute(UserModel.INCLUDE_SERVICE_ACCOUNT, true);
-            count = GetUsersQuery.countUsers(session, realm, attributes);
-            if (count > 0) {
-                userModels = GetUsersQuery.searchForUserStream(session, realm, attributes, firstResult, maxResults);
-            }
         } else {
             session.setAttribute(UserModel.INCLUDE_SERVICE_ACCOUNT, false);
-            count = GetUsersQuery.countUsers(session, realm, new HashMap<>());
-            if (count > 0) {
-                userModels = GetUsersQuery.searchForUserStream(session, realm, new HashMap<>(), firstResult, maxResults);
-            }
         }
+        return attributes;
+    }
+
+    /**
+     * Cloudtrust specific: creation range, pending required action and credential type filters
+     */
+    private void addStateFilters(Map<String, String> attributes, String createdAfter, String createdBefore, String requiredAction,
+                                 String credentialType, String missingCredentialType) {
+        addWhenNotBlank(attributes, GetUsersQuery.CREATED_AFTER, toTimestamp("createdAfter", createdAfter));
+        addWhenNotBlank(attributes, GetUsersQuery.CREATED_BEFORE, toTimestamp("createdBefore", createdBefore));
+        addWhenNotBlank(attributes, GetUsersQuery.REQUIRED_ACTION, requiredAction);
+        addWhenNotBlank(attributes, GetUsersQuery.CREDENTIAL_TYPE, credentialType);
+        addWhenNotBlank(attributes, GetUsersQuery.MISSING_CREDENTIAL_TYPE, missingCredentialType);
+    }
 
-        return new UsersPageRepresentation(toUserRepresentation(realm, userPermissionEvaluator, briefRepresentation, userModels), count);
+    /**
+     * @param name  Name of the parameter
+     * @param value Timestamp in milliseconds, ISO-8601 date (start of the day, UTC) or date-time
+     * @return the timestamp in milliseconds, null if value is blank
+     * @throws BadRequestException if the value is not a valid date
+     */
+    static String toTimestamp(String name, String value) {
+        if (StringUtils.isBlank(value)) {
+            return null;
+        }
+        String trimmed = value.trim();
+        try {
+            if (StringUtils.isNumeric(trimmed)) {
+                return String.valueOf(Long.parseLong(trimmed));
+            }
+            if (trimmed.length() == 10) {
+                return String.valueOf(LocalDate.parse(trimmed).atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli());
+            }
+            return String.valueOf(OffsetDateTime.parse(trimmed).toInstant().toEpochMilli());
+        } catch (NumberFormatException | DateTimeParseException e) {
+            throw new BadRequestException("Invalid " + name + " " + value);
+        }
     }
 
     private void addWhenNotBlank(Map<String, String> map, String key, String value) {
@@ -443,13 +891,18 @@ public class CtUsersResource {
     /**
      * Source: keycloak-services/src/main/java/org.keycloak.services.resources.admin.UsersResource
      */
-    private List<UserRepresentation> toUserRepresentation(RealmModel realm, UserPermissionEvaluator usersEvaluator, Boolean briefRepresentation, Stream<UserModel> userModels) {
+    private List<UserRepresentation> toUserRepresentation(RealmModel realm, UserPermissionEvaluator usersEvaluator, Boolean briefRepresentation, List<UserModel> userModels) {
         boolean briefRepresentationB = briefRepresentation != null && briefRepresentation;
         boolean canViewGlobal = usersEvaluator.canView();
 
-        usersEvaluator.grantIfNoPermission(this.session.getAttribute(UserModel.GROUPS) != null);
+        usersEvaluator.grantIfNoPermission(this.session.getAttribute(GetUsersQuery.VIEWABLE_GROUPS) != null);
+
+        if (!briefRepresentationB) {
+            // Cloudtrust specific: load attributes, required actions and credentials of the whole page at once
+            UserEntitiesPrefetcher.prefetch(this.session, userModels);
+        }
 
-        return userModels
+        return userModels.stream()
                 .filter(user -> canViewGlobal || usersEvaluator.canView(user))
                 .map(user -> {
                     UserRepresentation userRep = briefRepresentationB
@@ -1,35 +1,49 @@
 package io.cloudtrust.keycloak.services.resource.api.admin;
 
+import io.cloudtrust.keycloak.services.resource.api.cache.UsersCountCache;
 import jakarta.persistence.EntityManager;
 import jakarta.persistence.TypedQuery;
-import jakarta.persistence.criteria.CriteriaBuilder;
-import jakarta.persistence.criteria.CriteriaQuery;
-import jakarta.persistence.criteria.Expression;
-import jakarta.persistence.criteria.From;
-import jakarta.persistence.criteria.Join;
-import jakarta.persistence.criteria.JoinType;
-import jakarta.persistence.criteria.Predicate;
-import jakarta.persistence.criteria.Root;
-import jakarta.persistence.criteria.Subquery;
+import org.hibernate.jpa.HibernateHints;
 import org.keycloak.connections.jpa.JpaConnectionProvider;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.RealmModel;
 import org.keycloak.models.UserModel;
 import org.keycloak.models.UserProvider;
-import org.keycloak.models.jpa.entities.UserAttributeEntity;
+import org.keycloak.models.cache.UserCache;
+import org.keycloak.models.jpa.JpaUserProvider;
+import org.keycloak.models.jpa.UserAdapter;
 import org.keycloak.models.jpa.entities.UserEntity;
-import org.keycloak.models.jpa.entities.UserGroupMembershipEntity;
-import org.keycloak.models.jpa.entities.UserRoleMappingEntity;
+import org.keycloak.representations.idm.UserRepresentation;
+import org.keycloak.storage.UserStorageManager;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.stream.Stream;
 
 import static org.keycloak.models.jpa.PaginationUtils.paginateQuery;
 import static org.keycloak.utils.StreamsUtil.closing;
 
+/**
+ * Users search. Predicates are imported from Keycloak (see JpaUserProvider::searchForUserStream) and rendered as JPQL
+ * so that the page and the total count can be fetched with a single statement (a windowed count is not available in
+ * the Criteria API).
+ * <p>
+ * A search is reduced to its shape: which predicates are used and how (exact match, like, ...), in a canonical order.
+ * Values are always bound as parameters, so the statement only depends on the shape: it is rendered once per shape
+ * and the same JPQL string is given to Hibernate, which reuses its query plan.
+ */
 public class GetUsersQuery {
     // Constants, searchForUserStream and getSearchOptionPredicateArray are imported from Keycloak code. See JpaUserEntity
     private static final String EMAIL = "email";
@@ -37,8 +51,69 @@ public class GetUsersQuery {
     private static final String USERNAME = "username";
     private static final String FIRST_NAME = "firstName";
     private static final String LAST_NAME = "lastName";
+    // Search attributes of the users state filters. They are named like Keycloak's search attributes so that they can't
+    // be mistaken for custom attributes.
+    static final String CREATED_AFTER = "cloudtrust.users.query.created_after";
+    static final String CREATED_BEFORE = "cloudtrust.users.query.created_before";
+    static final String REQUIRED_ACTION = "cloudtrust.users.query.required_action";
+    static final String CREDENTIAL_TYPE = "cloudtrust.users.query.credential_type";
+    static final String MISSING_CREDENTIAL_TYPE = "cloudtrust.users.query.missing_credential_type";
+    // Session attribute holding the roles filter
+    static final String FILTER_ROLES = "filterRoles";
+    // Session attribute holding the groups granting the roles of the roles filter, when effective roles are searched
+    static final String FILTER_ROLE_GROUPS = "filterRoleGroups";
+    // Session attribute holding the groups whose members (subgroups included) the admin can view, when fine-grained
+    // permissions restrict the users the admin can view
+    static final String VIEWABLE_GROUPS = "viewableGroups";
+    // Session attribute holding the ids of the users matching the search, when it has been resolved by the search index
+    static final String SEARCH_IDS = "searchIds";
+
+    private static final Set<String> LOOKUP_FIELDS = Set.of("id", USERNAME, EMAIL);
+    private static final int MAX_STATEMENTS = 1000;
+    private static final int MAX_IN_LIST_SIZE = 500;
+    private static final Map<String, String> STATEMENTS = new ConcurrentHashMap<>();
+
+
+    private final StringBuilder shape = new StringBuilder();
+    private final StringBuilder joins = new StringBuilder();
+    private final List<Supplier<String>> predicates = new ArrayList<>();
+    private final Map<String, Object> parameters = new HashMap<>();
+    private boolean federatedIdentitiesJoined;
 
-    private GetUsersQuery() {
+    /**
+     * A page of users and the total count of users matching the search criteria
+     *
+     * @param users   Users of the page
+     * @param count   Total count, null if it was not requested
+     * @param hasMore Whether there are users after this page, null if it was not computed
+     * @param next    Position of the last fetched row, whether or not its user is part of the page, null when the page
+     *                is known to be the last one
+     * @param <T>     Users type: models, or representations built from the columns of a sparse fieldset
+     */
+    public record Page<T>(List<T> users, Integer count, Boolean hasMore, UsersCursor next) {
+    }
+
+    /**
+     * What a users statement selects and how each selected row is converted: whole entities materialized as models, or
+     * the columns of a sparse fieldset
+     *
+     * @param kind      Identifies the selection in the statements cache
+     * @param select    Selected JPQL expressions
+     * @param width     Number of selected expressions
+     * @param converter Converts the entity or the array of selected columns, can return null to skip the row
+     * @param position  Gives the position of the entity or the array of selected columns in the sort order
+     */
+    private record Selection<T>(String kind, String select, int width, Function<Object, T> converter,
+                                BiFunction<UsersSortOrder, Object, UsersCursor> position) {
+    }
+
+    private GetUsersQuery(KeycloakSession session, RealmModel realm, Map<String, String> attributes) {
+        String realmId = addParameter(realm.getId());
+        addPredicate("realm", () -> "u.realmId = " + realmId);
+        createPredicates(session, attributes);
+        addGroupsPredicate(session);
+        addRolesPredicate(session);
+        addViewableGroupsPredicate(session);
     }
 
     /**
@@ -48,70 +123,502 @@ public class GetUsersQuery {
      */
     public static int countUsers(KeycloakSession session, RealmModel realm, Map<String, String> attributes) {
         EntityManager em = session.getProvider(JpaConnectionProvider.class).getEntityManager();
-        CriteriaBuilder builder = em.getCriteriaBuilder();
-        CriteriaQuery<Long> queryBuilder = builder.createQuery(Long.class);
-        Root<UserEntity> root = queryBuilder.from(UserEntity.class);
-        Expression<Long> count = builder.count(root);
+        return new GetUsersQuery(session, realm, attributes).count(em);
+    }
 
-        queryBuilder = queryBuilder.select(count);
-        List<Predicate> predicates = new ArrayList<>();
+    /**
+     * Counts the users matching the search criteria grouped by the facets values. Enabled and email verified flags are
+     * counted by a single grouped statement, identity provider links by another one.
+     *
+     * @param session    Keycloak session
+     * @param realm      Realm we are searching users in
+     * @param attributes Search attributes
+     * @param facets     Requested facets
+     * @return count of users by value, for each facet
+     */
+    public static Map<String, Map<String, Long>> countFacets(KeycloakSession session, RealmModel realm, Map<String, String> attributes,
+                                                             Set<UsersFacet> facets) {
+        EntityManager em = session.getProvider(JpaConnectionProvider.class).getEntityManager();
+        Map<String, Map<String, Long>> res = new LinkedHashMap<>();
+        if (facets.contains(UsersFacet.ENABLED) || facets.contains(UsersFacet.EMAIL_VERIFIED)) {
+            Map<String, Long> enabled = new TreeMap<>();
+            Map<String, Long> emailVerified = new TreeMap<>();
+            GetUsersQuery usersQuery = new GetUsersQuery(session, realm, attributes);
+            TypedQuery<Object[]> query = em.createQuery(usersQuery.statement("facet-flags",
+                    () -> "select u.enabled, u.emailVerified, count(u) " + usersQuery.fromWhere() + " group by u.enabled, u.emailVerified"), Object[].class);
+            usersQuery.bind(query);
+            for (Object[] row : query.getResultList()) {
+                long count = ((Number) row[2]).longValue();
+                enabled.merge(String.valueOf(row[0]), count, Long::sum);
+                emailVerified.merge(String.valueOf(row[1]), count, Long::sum);
+            }
+            if (facets.contains(UsersFacet.ENABLED)) {
+                res.put(UsersFacet.ENABLED.getParameter(), enabled);
+            }
+            if (facets.contains(UsersFacet.EMAIL_VERIFIED)) {
+                res.put(UsersFacet.EMAIL_VERIFIED.getParameter(), emailVerified);
+            }
+        }
+        if (facets.contains(UsersFacet.IDP_ALIAS)) {
+            // A user is linked at most once to an identity provider
+            Map<String, Long> idpAliases = new TreeMap<>();
+            GetUsersQuery usersQuery = new GetUsersQuery(session, realm, attributes);
+            TypedQuery<Object[]> query = em.createQuery(usersQuery.statement("facet-idp",
+                    () -> "select l.identityProvider, count(l) from FederatedIdentityEntity l where l.user.id in (select u.id "
+                            + usersQuery.fromWhere() + ") group by l.identityProvider"), Object[].class);
+            usersQuery.bind(query);
+            for (Object[] row : query.getResultList()) {
+                idpAliases.put((String) row[0], ((Number) row[1]).longValue());
+            }
+            res.put(UsersFacet.IDP_ALIAS.getParameter(), idpAliases);
+        }
+        return res;
+    }
 
-        predicates.add(builder.equal(root.get("realmId"), realm.getId()));
+    /**
+     * Imported from Keycloak: JpaUserProvider::searchForUserStream
+     *
+     * @param session     Keycloak session
+     * @param realm       Realm we are searching users in
+     * @param attributes  Search attributes
+     * @param sort        Sort order
+     * @param after       Keyset pagination: position after which the page starts (can be null)
+     * @param firstResult Pagination: first index
+     * @param maxResults  Pagination: max row per page
+     * @return Stream of users
+     */
+    public static Stream<UserModel> searchForUserStream(KeycloakSession session, RealmModel realm, Map<String, String> attributes,
+                                                        UsersSortOrder sort, UsersCursor after, Integer firstResult, Integer maxResults) {
+        EntityManager em = session.getProvider(JpaConnectionProvider.class).getEntityManager();
+        GetUsersQuery usersQuery = new GetUsersQuery(session, realm, attributes);
+        String orderBy = usersQuery.addSeekPredicate(sort, after);
+        TypedQuery<UserEntity> query = em.createQuery(usersQuery.statement("select-" + sort, () -> "select u " + usersQuery.fromWhere() + orderBy), UserEntity.class);
+        usersQuery.bind(query);
 
-        createPredicates(session, attributes, predicates, root, builder);
+        return closing(paginateQuery(query, firstResult, maxResults).getResultStream())
+                .map(toUserModel(session, realm, em))
+                .filter(Objects::nonNull);
+    }
 
-        addGroupsPredicate(predicates, session, root, builder, queryBuilder);
-        addRolesPredicate(predicates, session, root, builder, queryBuilder);
+    /**
+     * Loads the users of a realm having one of the given values, with one IN query per chunk of values
+     *
+     * @param session Keycloak session
+     * @param realm   Realm we are searching users in
+     * @param field   id, username or email. Usernames and emails are stored in lower case: values must be lower case
+     * @param values  Searched values
+     * @return the matching users
+     */
+    static List<UserModel> lookupUsers(KeycloakSession session, RealmModel realm, String field, Set<String> values) {
+        if (!LOOKUP_FIELDS.contains(field)) {
+            throw new IllegalArgumentException("Unsupported lookup field " + field);
+        }
+        EntityManager em = session.getProvider(JpaConnectionProvider.class).getEntityManager();
+        Function<UserEntity, UserModel> toUserModel = toUserModel(session, realm, em);
+        String statement = "select u from UserEntity u where u.realmId = :realmId and u." + field + " in :values";
+        List<String> padded = padded(values);
+        List<UserModel> res = new ArrayList<>();
+        for (int start = 0; start < padded.size(); start += MAX_IN_LIST_SIZE) {
+            em.createQuery(statement, UserEntity.class)
+                    .setParameter("realmId", realm.getId())
+                    .setParameter("values", padded.subList(start, Math.min(start + MAX_IN_LIST_SIZE, padded.size())))
+                    .getResultStream()
+                    .map(toUserModel)
+                    .filter(Objects::nonNull)
+                    .forEach(res::add);
+        }
+        return res;
+    }
 
-        queryBuilder.where(predicates.toArray(new Predicate[predicates.size()]));
+    /**
+     * Scrolls all the users matching the criteria, ordered by id. Entities are read-only and fetched from the database
+     * by batches: the caller is expected to detach them once processed.
+     *
+     * @param session    Keycloak session
+     * @param realm      Realm we are searching users in
+     * @param attributes Search attributes
+     * @param afterId    Id of the last user already processed (can be null)
+     * @param fetchSize  JDBC fetch size
+     * @return Stream of user entities
+     */
+    public static Stream<UserEntity> scrollUserEntities(KeycloakSession session, RealmModel realm, Map<String, String> attributes,
+                                                        String afterId, int fetchSize) {
+        EntityManager em = session.getProvider(JpaConnectionProvider.class).getEntityManager();
+        GetUsersQuery usersQuery = new GetUsersQuery(session, realm, attributes);
+        if (afterId != null) {
+            String id = usersQuery.addParameter(afterId);
+            usersQuery.addPredicate("after-id", () -> "u.id > " + id);
+        }
+        TypedQuery<UserEntity> query = em.createQuery(usersQuery.statement("scroll", () -> "select u " + usersQuery.fromWhere() + " order by u.id"), UserEntity.class);
+        usersQuery.bind(query);
+        query.setHint(HibernateHints.HINT_FETCH_SIZE, fetchSize);
+        query.setHint(HibernateHints.HINT_READ_ONLY, true);
+        return closing(query.getResultStream());
+    }
 
-        TypedQuery<Long> query = em.createQuery(queryBuilder);
-        return query.getSingleResult().intValue();
+    /**
+     * Search a page of users and count the users matching the criteria according to the count mode
+     *
+     * @param session     Keycloak session
+     * @param realm       Realm we are searching users in
+     * @param attributes  Search attributes
+     * @param sort        Sort order
+     * @param after       Keyset pagination: position after which the page starts (can be null)
+     * @param firstResult Pagination: first index
+     * @param maxResults  Pagination: max row per page
+     * @param countMode   How the total count is computed
+     * @param countCache  Cache used by the CACHED count mode
+     * @param windowed    Whether the page and the count can be fetched by a single statement (windowed count)
+     * @return the page and the total count
+     */
+    public static Page<UserModel> searchForUsersPage(KeycloakSession session, RealmModel realm, Map<String, String> attributes,
+                                                     UsersSortOrder sort, UsersCursor after, Integer firstResult, Integer maxResults,
+                                                     UsersCountMode countMode, UsersCountCache countCache,
+                                                     boolean windowed) {
+        EntityManager em = session.getProvider(JpaConnectionProvider.class).getEntityManager();
+        Function<UserEntity, UserModel> toUserModel = toUserModel(session, realm, em);
+        Selection<UserModel> entities = new Selection<>("select", "u", 1, entity -> toUserModel.apply((UserEntity) entity),
+                (sortOrder, entity) -> {
+                    UserEntity user = (UserEntity) entity;
+                    return UsersCursor.of(sortOrder, user.getId(), user.getUsername(), user.getEmail(), user.getCreatedTimestamp());
+                });
+        return searchForPage(session, realm, attributes, entities, sort, after, firstResult, maxResults, countMode, countCache, windowed);
     }
 
     /**
-     * Imported from Keycloak: JpaUserProvider::searchForUserStream
+     * Search a page of users selecting only the columns of a sparse fieldset: representations are built from the
+     * selected columns, without loading entities nor creating user models. Requested custom attributes are loaded for
+     * the whole page by a single query.
      *
      * @param session     Keycloak session
      * @param realm       Realm we are searching users in
      * @param attributes  Search attributes
+     * @param fields      Requested fields
+     * @param sort        Sort order
+     * @param after       Keyset pagination: position after which the page starts (can be null)
      * @param firstResult Pagination: first index
      * @param maxResults  Pagination: max row per page
-     * @return Stream of users
+     * @param countMode   How the total count is computed
+     * @param countCache  Cache used by the CACHED count mode
+     * @param windowed    Whether the page and the count can be fetched by a single statement (windowed count)
+     * @return the page and the total count
+     */
+    public static Page<UserRepresentation> searchForUserFieldsPage(KeycloakSession session, RealmModel realm, Map<String, String> attributes,
+                                                                   UsersFields fields, UsersSortOrder sort, UsersCursor after,
+                                                                   Integer firstResult, Integer maxResults,
+                                                                   UsersCountMode countMode, UsersCountCache countCache,
+                                                                   boolean windowed) {
+        Selection<UserRepresentation> columns = new Selection<>("fields(" + fields.getSelect() + ")", fields.getSelect(),
+                fields.getWidth(), row -> fields.toRepresentation((Object[]) row),
+                (sortOrder, row) -> {
+                    UserRepresentation user = fields.toRepresentation((Object[]) row);
+                    return UsersCursor.of(sortOrder, user.getId(), user.getUsername(), user.getEmail(), user.getCreatedTimestamp());
+                });
+        Page<UserRepresentation> page = searchForPage(session, realm, attributes, columns, sort, after, firstResult, maxResults, countMode, countCache, windowed);
+        if (!fields.getAttributes().isEmpty() && !page.users().isEmpty()) {
+            loadAttributes(session, page.users(), fields.getAttributes());
+        }
+        return page;
+    }
+
+    private static <T> Page<T> searchForPage(KeycloakSession session, RealmModel realm, Map<String, String> attributes, Selection<T> selection,
+                                             UsersSortOrder sort, UsersCursor after, Integer firstResult, Integer maxResults,
+                                             UsersCountMode countMode, UsersCountCache countCache, boolean windowed) {
+        switch (countMode) {
+            case NONE:
+                return searchForPageWithoutCount(session, realm, attributes, selection, sort, after, firstResult, maxResults);
+            case CACHED:
+                String filterKey = getFilterKey(session, attributes);
+                long generation = countCache.getGeneration(realm.getId());
+                Integer count = countCache.get(realm.getId(), filterKey);
+                if (count != null) {
+                    List<?> rows = count > 0
+                            ? select(session, realm, attributes, selection, sort, after, firstResult, maxResults)
+                            : List.of();
+                    return toPage(rows, selection, sort, maxResults, count, null);
+                }
+                Page<T> page = searchForPageWithExactCount(session, realm, attributes, selection, sort, after, firstResult, maxResults, windowed);
+                countCache.put(realm.getId(), filterKey, page.count(), generation);
+                return page;
+            default:
+                return searchForPageWithExactCount(session, realm, attributes, selection, sort, after, firstResult, maxResults, windowed);
+        }
+    }
+
+    /**
+     * @return the selected rows: entities, or arrays of columns
      */
-    public static Stream<UserModel> searchForUserStream(KeycloakSession session, RealmModel realm, Map<String, String> attributes, Integer firstResult, Integer maxResults) {
+    private static List<?> select(KeycloakSession session, RealmModel realm, Map<String, String> attributes, Selection<?> selection,
+                                  UsersSortOrder sort, UsersCursor after, Integer firstResult, Integer maxResults) {
         EntityManager em = session.getProvider(JpaConnectionProvider.class).getEntityManager();
-        CriteriaBuilder builder = em.getCriteriaBuilder();
-        CriteriaQuery<UserEntity> queryBuilder = builder.createQuery(UserEntity.class);
-        Root<UserEntity> root = queryBuilder.from(UserEntity.class);
+        GetUsersQuery usersQuery = new GetUsersQuery(session, realm, attributes);
+        String orderBy = usersQuery.addSeekPredicate(sort, after);
+        TypedQuery<?> query = em.createQuery(usersQuery.statement(selection.kind() + "-" + sort,
+                () -> "select " + selection.select() + " " + usersQuery.fromWhere() + orderBy), selection.width() == 1 ? Object.class : Object[].class);
+        usersQuery.bind(query);
+        return paginateQuery(query, firstResult, maxResults).getResultList();
+    }
+
+    /**
+     * Converts the fetched rows of a page. The position of the next page is the one of the last fetched row, so that
+     * rows skipped by the conversion don't end the pagination early.
+     */
+    private static <T> Page<T> toPage(List<?> rows, Selection<T> selection, UsersSortOrder sort, Integer maxResults,
+                                      Integer count, Boolean hasMore) {
+        List<T> users = rows.stream()
+                .map(selection.converter())
+                .filter(Objects::nonNull)
+                .toList();
+        boolean full = maxResults != null && maxResults > 0 && rows.size() == maxResults;
+        UsersCursor next = full && !Boolean.FALSE.equals(hasMore)
+                ? selection.position().apply(sort, rows.get(rows.size() - 1))
+                : null;
+        return new Page<>(users, count, hasMore, next);
+    }
 
-        List<Predicate> predicates = new ArrayList<>();
+    /**
+     * Search a page of users without counting them: one more user is fetched to know if there are users after the page
+     */
+    private static <T> Page<T> searchForPageWithoutCount(KeycloakSession session, RealmModel realm, Map<String, String> attributes,
+                                                         Selection<T> selection, UsersSortOrder sort, UsersCursor after,
+                                                         Integer firstResult, Integer maxResults) {
+        boolean limited = maxResults != null && maxResults > 0;
+        List<?> rows = select(session, realm, attributes, selection, sort, after, firstResult, limited ? maxResults + 1 : maxResults);
+        boolean hasMore = limited && rows.size() > maxResults;
+        return toPage(hasMore ? rows.subList(0, maxResults) : rows, selection, sort, maxResults, null, hasMore);
+    }
+
+    /**
+     * Search a page of users and count all the users matching the criteria.
+     * When the database supports window functions, the count is computed by the statement which loads the page.
+     * Otherwise, or when the count can't be deduced from the page (keyset pagination, page after the last user), a
+     * count query is executed.
+     *
+     * @param session     Keycloak session
+     * @param realm       Realm we are searching users in
+     * @param attributes  Search attributes
+     * @param selection   What is selected for each user
+     * @param sort        Sort order
+     * @param after       Keyset pagination: position after which the page starts (can be null)
+     * @param firstResult Pagination: first index
+     * @param maxResults  Pagination: max row per page
+     * @param windowed    Whether the page and the count can be fetched by a single statement (windowed count)
+     * @return the page and the total count
+     */
+    private static <T> Page<T> searchForPageWithExactCount(KeycloakSession session, RealmModel realm, Map<String, String> attributes,
+                                                           Selection<T> selection, UsersSortOrder sort, UsersCursor after,
+                                                           Integer firstResult, Integer maxResults, boolean windowed) {
+        EntityManager em = session.getProvider(JpaConnectionProvider.class).getEntityManager();
+        if (after != null || !windowed) {
+            int count = countUsers(session, realm, attributes);
+            List<?> rows = count > 0
+                    ? select(session, realm, attributes, selection, sort, after, firstResult, maxResults)
+                    : List.of();
+            return toPage(rows, selection, sort, maxResults, count, null);
+        }
 
-        predicates.add(builder.equal(root.get("realmId"), realm.getId()));
+        GetUsersQuery usersQuery = new GetUsersQuery(session, realm, attributes);
+        String orderBy = usersQuery.addSeekPredicate(sort, null);
+        TypedQuery<Object[]> query = em.createQuery(usersQuery.statement(selection.kind() + "-window-" + sort,
+                () -> "select " + selection.select() + ", count(*) over () " + usersQuery.fromWhere() + orderBy), Object[].class);
+        usersQuery.bind(query);
+
+        List<Object[]> rows = paginateQuery(query, firstResult, maxResults).getResultList();
+        if (rows.isEmpty()) {
+            // Either no user matches or the page is after the last user
+            int count = firstResult != null && firstResult > 0 ? usersQuery.count(em) : 0;
+            return new Page<>(List.of(), count, null, null);
+        }
 
-        createPredicates(session, attributes, predicates, root, builder);
+        int width = selection.width();
+        List<Object> selected = rows.stream()
+                .map(row -> width == 1 ? row[0] : Arrays.copyOf(row, width))
+                .toList();
+        return toPage(selected, selection, sort, maxResults, ((Number) rows.get(0)[width]).intValue(), null);
+    }
 
-        addGroupsPredicate(predicates, session, root, builder, queryBuilder);
-        addRolesPredicate(predicates, session, root, builder, queryBuilder);
+    /**
+     * Loads the requested custom attributes of the users of a page with a single query
+     */
+    private static void loadAttributes(KeycloakSession session, List<UserRepresentation> users, List<String> names) {
+        EntityManager em = session.getProvider(JpaConnectionProvider.class).getEntityManager();
+        Map<String, UserRepresentation> byId = new HashMap<>();
+        users.forEach(user -> byId.put(user.getId(), user));
+        List<String> ids = padded(byId.keySet());
+        for (int start = 0; start < ids.size(); start += MAX_IN_LIST_SIZE) {
+            em.createQuery("select a.user.id, a.name, a.value, a.longValue from UserAttributeEntity a where a.user.id in :ids and a.name in :names", Object[].class)
+                    .setParameter("ids", ids.subList(start, Math.min(start + MAX_IN_LIST_SIZE, ids.size())))
+                    .setParameter("names", names)
+                    .setHint(HibernateHints.HINT_READ_ONLY, true)
+                    .getResultStream()
+                    .forEach(row -> {
+                        UserRepresentation user = byId.get((String) row[0]);
+                        String value = row[2] != null ? (String) row[2] : (String) row[3];
+                        if (user.getAttributes() == null) {
+                            user.setAttributes(new HashMap<>());
+                        }
+                        user.getAttributes().computeIfAbsent((String) row[1], k -> new ArrayList<>()).add(value);
+                    });
+        }
+    }
 
-        queryBuilder.where(predicates.toArray(new Predicate[predicates.size()])).orderBy(builder.asc(root.get(UserModel.USERNAME)));
+    /**
+     * Loads the group memberships of the users of a page with a single query (per chunk of users)
+     *
+     * @param session Keycloak session
+     * @param userIds Identifiers of the users of the page
+     * @return the identifiers of the groups of each user having groups
+     */
+    static Map<String, List<String>> loadGroupIds(KeycloakSession session, Set<String> userIds) {
+        Map<String, List<String>> res = new HashMap<>();
+        if (userIds.isEmpty()) {
+            return res;
+        }
+        EntityManager em = session.getProvider(JpaConnectionProvider.class).getEntityManager();
+        List<String> ids = padded(userIds);
+        for (int start = 0; start < ids.size(); start += MAX_IN_LIST_SIZE) {
+            em.createQuery("select m.user.id, m.groupId from UserGroupMembershipEntity m where m.user.id in :ids", Object[].class)
+                    .setParameter("ids", ids.subList(start, Math.min(start + MAX_IN_LIST_SIZE, ids.size())))
+                    .setHint(HibernateHints.HINT_READ_ONLY, true)
+                    .getResultStream()
+                    .forEach(row -> res.computeIfAbsent((String) row[0], k -> new ArrayList<>()).add((String) row[1]));
+        }
+        return res;
+    }
 
-        TypedQuery<UserEntity> query = em.createQuery(queryBuilder);
+    /**
+     * @return a key identifying the users matching the search criteria, whatever the order of the attributes
+     */
+    @SuppressWarnings("unchecked")
+    static String getFilterKey(KeycloakSession session, Map<String, String> attributes) {
+        StringBuilder key = new StringBuilder();
+        new TreeMap<>(attributes).forEach((name, value) -> {
+            if (value != null) {
+                key.append(name).append('=').append(value).append('\n');
+            }
+        });
+        boolean includeServiceAccount = session.getAttributeOrDefault(UserModel.INCLUDE_SERVICE_ACCOUNT, true);
+        key.append("includeServiceAccount=").append(includeServiceAccount);
+        Set<String> groups = (Set<String>) session.getAttribute(UserModel.GROUPS);
+        if (groups != null && !groups.isEmpty()) {
+            key.append("\ngroups=").append(new TreeSet<>(groups));
+        }
+        Set<String> roles = (Set<String>) session.getAttribute(FILTER_ROLES);
+        if (roles != null && !roles.isEmpty()) {
+            key.append("\nroles=").append(new TreeSet<>(roles));
+        }
+        Set<String> roleGroups = (Set<String>) session.getAttribute(FILTER_ROLE_GROUPS);
+        if (roleGroups != null && !roleGroups.isEmpty()) {
+            key.append("\nroleGroups=").append(new TreeSet<>(roleGroups));
+        }
+        Set<String> viewableGroups = (Set<String>) session.getAttribute(VIEWABLE_GROUPS);
+        if (viewableGroups != null) {
+            key.append("\nviewableGroups=").append(new TreeSet<>(viewableGroups));
+        }
+        return key.toString();
+    }
 
+    /**
+     * Materializes the users from the entities loaded by the search query. Users are resolved by the user provider, so
+     * that the user cache, the storage providers and any decoration of the users are kept: users missing from the user
+     * cache are found in the persistence context, without querying the database again. Adapters are only created
+     * directly from the entities when the user provider is known to be the JPA one, without user cache, and the user
+     * is not linked to a federation provider.
+     */
+    static Function<UserEntity, UserModel> toUserModel(KeycloakSession session, RealmModel realm, EntityManager em) {
         UserProvider users = session.users();
-        return closing(paginateQuery(query, firstResult, maxResults).getResultStream())
-                .map(userEntity -> users.getUserById(realm, userEntity.getId()));
+        boolean jpaOnly = session.getProvider(UserCache.class) == null
+                && users instanceof UserStorageManager
+                && session.getProvider(UserProvider.class) instanceof JpaUserProvider;
+        return userEntity -> jpaOnly && userEntity.getFederationLink() == null
+                ? new UserAdapter(session, realm, em, userEntity)
+                : users.getUserById(realm, userEntity.getId());
     }
 
-    private static void createPredicates(KeycloakSession session, Map<String, String> attributes, List<Predicate> predicates, Root<UserEntity> root, CriteriaBuilder builder) {
-        Join<Object, Object> federatedIdentitiesJoin = null;
-        List<Predicate> attributePredicates = new ArrayList<>();
+    private int count(EntityManager em) {
+        TypedQuery<Long> query = em.createQuery(statement("count", () -> "select count(u) " + fromWhere()), Long.class);
+        bind(query);
+        return query.getSingleResult().intValue();
+    }
+
+    /**
+     * @param kind     Kind of statement (select, count, ...), with the order by if any
+     * @param renderer Renders the statement when it is not known yet for this shape
+     * @return the JPQL statement of this search shape
+     */
+    private String statement(String kind, Supplier<String> renderer) {
+        String key = kind + ":" + shape;
+        String statement = STATEMENTS.get(key);
+        if (statement == null) {
+            if (STATEMENTS.size() >= MAX_STATEMENTS) {
+                STATEMENTS.clear();
+            }
+            statement = renderer.get();
+            STATEMENTS.put(key, statement);
+        }
+        return statement;
+    }
+
+    /**
+     * Predicates are rendered only when the statement of the shape is not known yet. The rendered predicate must only
+     * depend on the shape token and the names of the parameters it uses.
+     *
+     * @param token Shape of the predicate
+     * @param jpql  Renders the predicate
+     */
+    private void addPredicate(String token, Supplier<String> jpql) {
+        shape.append(token).append(';');
+        predicates.add(jpql);
+    }
+
+    private String fromWhere() {
+        StringBuilder res = new StringBuilder("from UserEntity u").append(joins).append(" where ");
+        for (int i = 0; i < predicates.size(); i++) {
+            res.append(i == 0 ? "" : " and ").append(predicates.get(i).get());
+        }
+        return res.toString();
+    }
+
+    private void bind(TypedQuery<?> query) {
+        parameters.forEach(query::setParameter);
+    }
+
+    private String addParameter(Object value) {
+        String name = "p" + parameters.size();
+        parameters.put(name, value);
+        return ":" + name;
+    }
+
+    /**
+     * Adds the keyset pagination predicate: (sortKey, id) > (cursor key, cursor id)
+     *
+     * @return the order by clause matching the sort order
+     */
+    private String addSeekPredicate(UsersSortOrder sort, UsersCursor after) {
+        // Null values are mapped to a constant so that the seek predicate does not have to deal with SQL null ordering
+        String sortKey = switch (sort) {
+            case CREATED_TIMESTAMP -> "coalesce(u.createdTimestamp, 0L)";
+            case EMAIL -> "coalesce(u.email, '')";
+            default -> "u.username";
+        };
+        if (after != null) {
+            String key = addParameter(sort == UsersSortOrder.CREATED_TIMESTAMP ? (Object) after.getKeyAsLong() : after.getKey());
+            String id = addParameter(after.getId());
+            addPredicate("seek", () -> "(" + sortKey + " > " + key + " or (" + sortKey + " = " + key + " and u.id > " + id + "))");
+        }
+        return " order by " + sortKey + ", u.id";
+    }
+
+    @SuppressWarnings("unchecked")
+    private void createPredicates(KeycloakSession session, Map<String, String> attributes) {
+        Map<String, String> attributePredicates = new TreeMap<>();
 
         if (!session.getAttributeOrDefault(UserModel.INCLUDE_SERVICE_ACCOUNT, true)) {
-            predicates.add(root.get("serviceAccountClientLink").isNull());
+            addPredicate("no-service-account", () -> "u.serviceAccountClientLink is null");
         }
 
-        for (Map.Entry<String, String> entry : attributes.entrySet()) {
+        // Attributes are sorted so that the same filters always give the same shape
+        for (Map.Entry<String, String> entry : new TreeMap<>(attributes).entrySet()) {
             String key = entry.getKey();
             String value = entry.getValue();
 
@@ -121,8 +628,17 @@ public class GetUsersQuery {
 
             switch (key) {
                 case UserModel.SEARCH:
+                    Set<String> searchIds = (Set<String>) session.getAttribute(SEARCH_IDS);
+                    if (searchIds != null && searchIds.isEmpty()) {
+                        addPredicate("search-none", () -> "u.id is null");
+                        break;
+                    } else if (searchIds != null) {
+                        String ids = addParameter(padded(searchIds));
+                        addPredicate("search-ids", () -> "u.id in " + ids);
+                        break;
+                    }
                     for (String stringToSearch : value.trim().split("\\s+")) {
-                        predicates.add(builder.or(getSearchOptionPredicateArray(stringToSearch, builder, root)));
+                        addSearchOptionPredicate(stringToSearch);
                     }
                     break;
                 case FIRST_NAME:
@@ -135,65 +651,91 @@ public class GetUsersQuery {
                             exact = true;
                             value = value.substring(1);
                         }
+                        String field = key;
                         if (exact) {
-                            predicates.add(builder.equal(builder.lower(root.get(key)), value.toLowerCase()));
-                        } else if (value.startsWith("%") || value.endsWith("%")) {
-                            predicates.add(builder.like(builder.lower(root.get(key)), value.toLowerCase()));
+                            String param = addParameter(value.toLowerCase());
+                            addPredicate(field + "=", () -> "lower(u." + field + ") = " + param);
                         } else {
-                            predicates.add(builder.like(builder.lower(root.get(key)), "%" + value.toLowerCase() + "%"));
+                            String pattern = value.startsWith("%") || value.endsWith("%") ? value : "%" + value + "%";
+                            String param = addParameter(pattern.toLowerCase());
+                            addPredicate(field + "~", () -> "lower(u." + field + ") like " + param);
                         }
                     }
                     break;
                 case EMAIL_VERIFIED:
-                    predicates.add(builder.equal(root.get(key), Boolean.parseBoolean(value.toLowerCase())));
+                    String emailVerified = addParameter(Boolean.parseBoolean(value.toLowerCase()));
+                    addPredicate(key, () -> "u.emailVerified = " + emailVerified);
                     break;
                 case UserModel.ENABLED:
-                    predicates.add(builder.equal(root.get(key), Boolean.parseBoolean(value)));
+                    String enabled = addParameter(Boolean.parseBoolean(value));
+                    addPredicate(key, () -> "u.enabled = " + enabled);
                     break;
                 case UserModel.IDP_ALIAS:
-                    if (federatedIdentitiesJoin == null) {
-                        federatedIdentitiesJoin = root.join("federatedIdentities");
-                    }
-                    predicates.add(builder.equal(federatedIdentitiesJoin.get("identityProvider"), value));
+                    joinFederatedIdentities();
+                    String idpAlias = addParameter(value);
+                    addPredicate(key, () -> "f.identityProvider = " + idpAlias);
                     break;
                 case UserModel.IDP_USER_ID:
-                    if (federatedIdentitiesJoin == null) {
-                        federatedIdentitiesJoin = root.join("federatedIdentities");
-                    }
-                    predicates.add(builder.equal(federatedIdentitiesJoin.get("userId"), value));
+                    joinFederatedIdentities();
+                    String idpUserId = addParameter(value);
+                    addPredicate(key, () -> "f.userId = " + idpUserId);
+                    break;
+                case CREATED_AFTER:
+                    String createdAfter = addParameter(Long.parseLong(value));
+                    addPredicate("created-after", () -> "u.createdTimestamp >= " + createdAfter);
+                    break;
+                case CREATED_BEFORE:
+                    String createdBefore = addParameter(Long.parseLong(value));
+                    addPredicate("created-before", () -> "u.createdTimestamp < " + createdBefore);
+                    break;
+                case REQUIRED_ACTION:
+                    String action = addParameter(value);
+                    addPredicate("required-action", () -> "exists (select ra from UserRequiredActionEntity ra where ra.user.id = u.id and ra.action = "
+                            + action + ")");
+                    break;
+                case CREDENTIAL_TYPE:
+                    String credentialType = addParameter(value);
+                    addPredicate("credential", () -> "exists (select c from CredentialEntity c where c.user.id = u.id and c.type = "
+                            + credentialType + ")");
+                    break;
+                case MISSING_CREDENTIAL_TYPE:
+                    String missingType = addParameter(value);
+                    addPredicate("missing-credential", () -> "not exists (select mc from CredentialEntity mc where mc.user.id = u.id and mc.type = "
+                            + missingType + ")");
                     break;
                 case UserModel.EXACT:
                     break;
                 // All unknown attributes will be assumed as custom attributes
                 default:
-                    Join<UserEntity, UserAttributeEntity> attributesJoin = root.join("attributes", JoinType.LEFT);
-
-                    attributePredicates.add(builder.and(
-                            builder.equal(builder.lower(attributesJoin.get("name")), key.toLowerCase()),
-                            builder.equal(builder.lower(attributesJoin.get("value")), value.toLowerCase())));
-
+                    attributePredicates.put(key, value);
                     break;
             }
         }
 
-        if (!attributePredicates.isEmpty()) {
-            predicates.add(builder.and(attributePredicates.toArray(new Predicate[0])));
+        // One semi-join per attribute: the users rows are not multiplied. Names and values are matched case-insensitively.
+        attributePredicates.forEach((name, value) -> {
+            String nameParam = addParameter(name.toLowerCase());
+            String valueParam = addParameter(value.toLowerCase());
+            addPredicate("attribute", () -> "exists (select a from UserAttributeEntity a where a.user.id = u.id and lower(a.name) = "
+                    + nameParam + " and lower(a.value) = " + valueParam + ")");
+        });
+    }
+
+    private void joinFederatedIdentities() {
+        if (!federatedIdentitiesJoined) {
+            joins.append(" join u.federatedIdentities f");
+            federatedIdentitiesJoined = true;
         }
     }
 
-    private static Predicate[] getSearchOptionPredicateArray(String value, CriteriaBuilder builder, From<?, UserEntity> from) {
+    private void addSearchOptionPredicate(String value) {
         value = value.toLowerCase();
 
-        List<Predicate> orPredicates = new ArrayList<>();
-
+        String operator;
         if (value.length() >= 2 && value.charAt(0) == '"' && value.charAt(value.length() - 1) == '"') {
             // exact search
             value = value.substring(1, value.length() - 1);
-
-            orPredicates.add(builder.equal(from.get(USERNAME), value));
-            orPredicates.add(builder.equal(from.get(EMAIL), value));
-            orPredicates.add(builder.equal(builder.lower(from.get(FIRST_NAME)), value));
-            orPredicates.add(builder.equal(builder.lower(from.get(LAST_NAME)), value));
+            operator = " = ";
         } else {
             if (value.length() >= 2 && value.charAt(0) == '*' && value.charAt(value.length() - 1) == '*') {
                 // infix search
@@ -205,51 +747,102 @@ public class GetUsersQuery {
                 }
                 value += "%";
             }
-
-            orPredicates.add(builder.like(from.get(USERNAME), value));
-            orPredicates.add(builder.like(from.get(EMAIL), value));
-            orPredicates.add(builder.like(builder.lower(from.get(FIRST_NAME)), value));
-            orPredicates.add(builder.like(builder.lower(from.get(LAST_NAME)), value));
+            operator = " like ";
         }
 
-        return orPredicates.toArray(new Predicate[0]);
+        String param = addParameter(value);
+        String op = operator;
+        addPredicate("search" + operator.trim(), () -> "(u." + USERNAME + op + param
+                + " or u." + EMAIL + op + param
+                + " or lower(u." + FIRST_NAME + ")" + op + param
+                + " or lower(u." + LAST_NAME + ")" + op + param + ")");
     }
 
-    private static void addGroupsPredicate(List<Predicate> predicates, KeycloakSession session, Root<UserEntity> root, CriteriaBuilder builder, CriteriaQuery<?> queryBuilder) {
+    @SuppressWarnings("unchecked")
+    private void addGroupsPredicate(KeycloakSession session) {
         Set<String> userGroups = (Set<String>) session.getAttribute(UserModel.GROUPS);
         if (userGroups != null && !userGroups.isEmpty()) {
-            Subquery subquery = queryBuilder.subquery(String.class);
-            Root<UserGroupMembershipEntity> from = subquery.from(UserGroupMembershipEntity.class);
-
-            subquery.select(builder.literal(1));
-
-            List<Predicate> subPredicates = new ArrayList<>();
-
-            subPredicates.add(from.get("groupId").in(userGroups));
-            subPredicates.add(builder.equal(from.get("user").get("id"), root.get("id")));
-
-            subquery.where(subPredicates.toArray(new Predicate[subPredicates.size()]));
-
-            predicates.add(builder.exists(subquery));
+            List<String> groups = addInListParameters(userGroups);
+            addPredicate("groups" + groups.size(), () -> "exists (select m from UserGroupMembershipEntity m where m.user.id = u.id and "
+                    + in("m.groupId", groups) + ")");
         }
     }
 
-    private static void addRolesPredicate(List<Predicate> predicates, KeycloakSession session, Root<UserEntity> root, CriteriaBuilder builder, CriteriaQuery<?> queryBuilder) {
-        Set<String> userRoles = (Set<String>) session.getAttribute("filterRoles");
-        if (userRoles != null && !userRoles.isEmpty()) {
-            Subquery subquery = queryBuilder.subquery(String.class);
-            Root<UserRoleMappingEntity> from = subquery.from(UserRoleMappingEntity.class);
-
-            subquery.select(builder.literal(1));
+    @SuppressWarnings("unchecked")
+    private void addRolesPredicate(KeycloakSession session) {
+        Set<String> userRoles = (Set<String>) session.getAttribute(FILTER_ROLES);
+        if (userRoles == null || userRoles.isEmpty()) {
+            return;
+        }
+        List<String> roles = addInListParameters(userRoles);
+        Set<String> roleGroups = (Set<String>) session.getAttribute(FILTER_ROLE_GROUPS);
+        if (roleGroups == null || roleGroups.isEmpty()) {
+            addPredicate("roles" + roles.size(), () -> "exists (select r from UserRoleMappingEntity r where r.user.id = u.id and "
+                    + in("r.roleId", roles) + ")");
+        } else {
+            // Effective roles: mapped to the user or to one of its groups
+            List<String> groups = addInListParameters(roleGroups);
+            addPredicate("roles" + roles.size() + "-groups" + groups.size(), () -> "(exists (select r from UserRoleMappingEntity r where r.user.id = u.id and "
+                    + in("r.roleId", roles) + ") or exists (select g from UserGroupMembershipEntity g where g.user.id = u.id and "
+                    + in("g.groupId", groups) + "))");
+        }
+    }
 
-            List<Predicate> subPredicates = new ArrayList<>();
+    /**
+     * Fine-grained permissions: only the users the admin can view are searched, so that pages are full and counts are
+     * right without loading users which would be filtered out afterward
+     */
+    @SuppressWarnings("unchecked")
+    private void addViewableGroupsPredicate(KeycloakSession session) {
+        Set<String> viewableGroups = (Set<String>) session.getAttribute(VIEWABLE_GROUPS);
+        if (viewableGroups == null) {
+            return;
+        }
+        if (viewableGroups.isEmpty()) {
+            addPredicate("viewable-none", () -> "u.id is null");
+        } else {
+            List<String> groups = addInListParameters(viewableGroups);
+            addPredicate("viewable" + groups.size(), () -> "exists (select v from UserGroupMembershipEntity v where v.user.id = u.id and "
+                    + in("v.groupId", groups) + ")");
+        }
+    }
 
-            subPredicates.add(from.get("roleId").in(userRoles));
-            subPredicates.add(builder.equal(from.get("user").get("id"), root.get("id")));
+    /**
+     * Large sets of values (subtrees of groups, composite roles) are split in several IN lists
+     *
+     * @return the names of the parameters of each IN list
+     */
+    private List<String> addInListParameters(Set<String> values) {
+        List<String> padded = padded(values);
+        List<String> res = new ArrayList<>();
+        for (int start = 0; start < padded.size(); start += MAX_IN_LIST_SIZE) {
+            res.add(addParameter(padded.subList(start, Math.min(start + MAX_IN_LIST_SIZE, padded.size()))));
+        }
+        return res;
+    }
 
-            subquery.where(subPredicates.toArray(new Predicate[subPredicates.size()]));
+    private static String in(String path, List<String> lists) {
+        StringBuilder res = new StringBuilder("(");
+        for (int i = 0; i < lists.size(); i++) {
+            res.append(i == 0 ? "" : " or ").append(path).append(" in ").append(lists.get(i));
+        }
+        return res.append(')').toString();
+    }
 
-            predicates.add(builder.exists(subquery));
+    /**
+     * IN lists are expanded to one SQL parameter per value: the values are padded to the next power of two (repeating
+     * the last one) so that a few SQL statements serve all the list sizes.
+     */
+    static List<String> padded(Set<String> values) {
+        List<String> res = new ArrayList<>(new TreeSet<>(values));
+        int size = Integer.highestOneBit(res.size());
+        if (size < res.size()) {
+            size <<= 1;
+        }
+        String last = res.get(res.size() - 1);
+        while (res.size() < size) {
+            res.add(last);
         }
+        return res;
     }
 }
@@ -0,0 +1,50 @@
+package io.cloudtrust.keycloak.services.resource.api.admin;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import io.cloudtrust.keycloak.representations.idm.RealmStatisticsRepresentation;
+import io.cloudtrust.keycloak.services.resource.api.cache.UsersStatisticsCache;
+import jakarta.ws.rs.core.StreamingOutput;
+import org.keycloak.util.JsonSerialization;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+
+/**
+ * Writes the statistics of several realms as a JSON object keyed by realm name. The representation of each realm is
+ * built and written one after the other.
+ */
+public class RealmsStatisticsWriter implements StreamingOutput {
+    private static final int FLUSH_INTERVAL = 50;
+    private static final ObjectWriter REALM_WRITER = JsonSerialization.mapper.writerFor(RealmStatisticsRepresentation.class)
+            .without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+
+    private final Map<String, UsersStatisticsCache.Counters> realms;
+
+    /**
+     * @param realms Counters by realm name, written in the iteration order of the map
+     */
+    public RealmsStatisticsWriter(Map<String, UsersStatisticsCache.Counters> realms) {
+        this.realms = realms;
+    }
+
+    @Override
+    public void write(OutputStream output) throws IOException {
+        try (JsonGenerator generator = JsonSerialization.mapper.getFactory().createGenerator(output)) {
+            generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+            generator.writeStartObject();
+            int count = 0;
+            for (Map.Entry<String, UsersStatisticsCache.Counters> realm : realms.entrySet()) {
+                generator.writeFieldName(realm.getKey());
+                UsersStatisticsCache.Counters counters = realm.getValue();
+                REALM_WRITER.writeValue(generator, new RealmStatisticsRepresentation(counters.toUsersStatistics(), counters.toCredentialsStatistics()));
+                if (++count % FLUSH_INTERVAL == 0) {
+                    generator.flush();
+                }
+            }
+            generator.writeEndObject();
+        }
+    }
+}
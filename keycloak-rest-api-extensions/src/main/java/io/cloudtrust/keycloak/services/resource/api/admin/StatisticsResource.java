@@ -1,34 +1,58 @@
 package io.cloudtrust.keycloak.services.resource.api.admin;
 
 import io.cloudtrust.keycloak.representations.idm.CredentialsStatisticsRepresentation;
+import io.cloudtrust.keycloak.representations.idm.PasswordHashStatisticsRepresentation;
 import io.cloudtrust.keycloak.representations.idm.UsersStatisticsRepresentation;
+import io.cloudtrust.keycloak.representations.idm.UsersTimelineBucketRepresentation;
 import io.cloudtrust.keycloak.services.resource.JpaResultCaster;
+import io.cloudtrust.keycloak.services.resource.api.ApiConfig;
+import io.cloudtrust.keycloak.services.resource.api.cache.PasswordHashesCache;
+import io.cloudtrust.keycloak.services.resource.api.cache.QueryCoalescer;
+import io.cloudtrust.keycloak.services.resource.api.cache.UsersStatisticsCache;
+import io.cloudtrust.keycloak.services.resource.api.cache.UsersTimelineCache;
 import jakarta.persistence.EntityManager;
+import jakarta.ws.rs.BadRequestException;
 import jakarta.ws.rs.GET;
 import jakarta.ws.rs.Path;
 import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.QueryParam;
 import jakarta.ws.rs.core.MediaType;
 import org.jboss.resteasy.reactive.NoCache;
 import org.keycloak.connections.jpa.JpaConnectionProvider;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.RealmModel;
-import org.keycloak.models.credential.PasswordCredentialModel;
 import org.keycloak.services.resources.admin.permissions.AdminPermissionEvaluator;
 
+import java.util.ArrayList;
 import java.util.List;
-
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * Users and credentials statistics, read from the counters maintained by each node (see {@link UsersStatisticsCache}).
+ * Concurrent requests for the statistics of a realm share the initial computation of its counters.
+ * The users creation timeline is computed by the database, closed buckets being cached (see {@link UsersTimelineCache}).
+ * The password hashes breakdown is cached by realm (see {@link PasswordHashesCache}).
+ */
 public class StatisticsResource {
-    private static final String[] NOT_AUTHENTICATORS = new String[]{PasswordCredentialModel.TYPE, PasswordCredentialModel.PASSWORD_HISTORY};
-    private static final String PARAM_REALM = "realmId";
+    private static final int MAX_TIMELINE_BUCKETS = 1000;
 
     private AdminPermissionEvaluator auth;
     private KeycloakSession session;
     private RealmModel realm;
+    private UsersStatisticsCache statisticsCache;
+    private QueryCoalescer queryCoalescer;
+    private UsersTimelineCache timelineCache;
+    private PasswordHashesCache passwordHashesCache;
 
-    public StatisticsResource(KeycloakSession session, AdminPermissionEvaluator auth) {
+    public StatisticsResource(KeycloakSession session, AdminPermissionEvaluator auth, ApiConfig apiConfig) {
         this.auth = auth;
         this.session = session;
         this.realm = session.getContext().getRealm();
+        this.statisticsCache = apiConfig.getUsersStatisticsCache();
+        this.queryCoalescer = apiConfig.getQueryCoalescer();
+        this.timelineCache = apiConfig.getUsersTimelineCache();
+        this.passwordHashesCache = apiConfig.getPasswordHashesCache();
     }
 
     @Path("users")
@@ -38,62 +62,116 @@ public class StatisticsResource {
     public UsersStatisticsRepresentation getUsersStatistics() {
         auth.users().requireView();
 
-        EntityManager em = session.getProvider(JpaConnectionProvider.class).getEntityManager();
-        UsersStatisticsRepresentation res = getEnabledUsersStatistics(em);
-        long activeUsersCount = getActiveUsersCount(em);
-        res.setInactive(res.getTotal() - activeUsersCount);
+        return getCounters().toUsersStatistics();
+    }
 
-        return res;
+    @Path("credentials")
+    @GET
+    @NoCache
+    @Produces(MediaType.APPLICATION_JSON)
+    public CredentialsStatisticsRepresentation getCredentialsStatistics() {
+        auth.users().requireView();
+
+        return getCounters().toCredentialsStatistics();
     }
 
-    @SuppressWarnings("unchecked")
-    private UsersStatisticsRepresentation getEnabledUsersStatistics(final EntityManager em) {
-        long enabledUsersCount = 0;
-        long disabledUsersCount = 0;
-
-        List<Object[]> result = em.createQuery("select u.enabled, count(*) from UserEntity u where u.realmId=:realmId group by u.enabled")
-                .setParameter(PARAM_REALM, realm.getId()).getResultList();
-        for (Object[] row : result) {
-            if (Boolean.TRUE.equals(row[0])) {
-                enabledUsersCount += JpaResultCaster.toLong(row[1]);
-            } else {
-                disabledUsersCount += JpaResultCaster.toLong(row[1]);
-            }
-        }
+    /**
+     * Get the number of passwords by hash algorithm and number of iterations
+     *
+     * @return the password hashes, sorted by algorithm and iterations
+     */
+    @Path("credentials/password-hashes")
+    @GET
+    @NoCache
+    @Produces(MediaType.APPLICATION_JSON)
+    public List<PasswordHashStatisticsRepresentation> getPasswordHashesStatistics() {
+        auth.users().requireView();
 
-        return new UsersStatisticsRepresentation(enabledUsersCount + disabledUsersCount, disabledUsersCount, 0);
+        // A cached breakdown is read without querying the database: only its computation is coalesced
+        List<PasswordHashStatisticsRepresentation> hashes = passwordHashesCache.getIfPresent(realm.getId());
+        if (hashes != null) {
+            return hashes;
+        }
+        return queryCoalescer.execute("password-hashes", realm.getId(), () -> passwordHashesCache.get(session, realm.getId()));
     }
 
-    private static final String QUERY_ACTIVE_USERS_COUNT =
-            "select count(distinct u.ID) "
-                    + "from USER_ENTITY u "
-                    + "join CREDENTIAL c on u.ID=c.USER_ID and c.TYPE!=:credType1 and c.TYPE!=:credType2 "
-                    + "where u.REALM_ID=:realmId";
-
-    @SuppressWarnings("unchecked")
-    private long getActiveUsersCount(EntityManager em) {
-        List<Long> result = em.createNativeQuery(QUERY_ACTIVE_USERS_COUNT)
-                .setParameter(PARAM_REALM, realm.getId())
-                .setParameter("credType1", NOT_AUTHENTICATORS[0])
-                .setParameter("credType2", NOT_AUTHENTICATORS[1])
-                .getResultList();
-        return result.isEmpty() ? 0 : result.get(0);
+    private UsersStatisticsCache.Counters getCounters() {
+        // Once computed, the counters are read without querying the database: only their computation is coalesced
+        UsersStatisticsCache.Counters counters = statisticsCache.getIfPresent(realm.getId());
+        if (counters != null) {
+            return counters;
+        }
+        return queryCoalescer.execute("users-statistics", realm.getId(), () -> statisticsCache.get(session, realm.getId()));
     }
 
-    @Path("credentials")
+    /**
+     * Get the number of users created by day, week or month
+     *
+     * @param intervalParam Width of the buckets: day (default), week or month
+     * @param fromParam     Start of the timeline: timestamp in milliseconds, ISO-8601 date or date-time
+     * @param toParam       End of the timeline (default: now)
+     * @return the buckets of the timeline, including the empty ones
+     */
+    @Path("users/timeline")
     @GET
     @NoCache
     @Produces(MediaType.APPLICATION_JSON)
-    @SuppressWarnings("unchecked")
-    public CredentialsStatisticsRepresentation getCredentialsStatistics() {
+    public List<UsersTimelineBucketRepresentation> getUsersTimeline(@QueryParam("interval") String intervalParam,
+                                                                    @QueryParam("from") String fromParam,
+                                                                    @QueryParam("to") String toParam) {
         auth.users().requireView();
 
-        EntityManager em = session.getProvider(JpaConnectionProvider.class).getEntityManager();
-        CredentialsStatisticsRepresentation asr = new CredentialsStatisticsRepresentation();
-        List<Object[]> result = em.createQuery("select c.type, count(*) from UserEntity u join u.credentials c where u.realmId=:realmId group by c.type")
-                .setParameter(PARAM_REALM, realm.getId()).getResultList();
-        result.forEach(row -> asr.put(JpaResultCaster.toString(row[0]), JpaResultCaster.toLong(row[1])));
+        UsersTimelineInterval interval = UsersTimelineInterval.fromParameter(intervalParam);
+        String fromTimestamp = CtUsersResource.toTimestamp("from", fromParam);
+        if (fromTimestamp == null) {
+            throw new BadRequestException("Missing from");
+        }
+        String toTimestamp = CtUsersResource.toTimestamp("to", toParam);
+        long now = System.currentTimeMillis();
+        long from = interval.floor(Long.parseLong(fromTimestamp));
+        long to = interval.ceil(toTimestamp == null ? now : Long.parseLong(toTimestamp));
+        List<Long> buckets = new ArrayList<>();
+        for (long start = from; start < to; start = interval.next(start)) {
+            if (buckets.size() == MAX_TIMELINE_BUCKETS) {
+                throw new BadRequestException("A timeline can have at most " + MAX_TIMELINE_BUCKETS + " buckets");
+            }
+            buckets.add(start);
+        }
+
+        // Buckets ended before now do not change anymore: they are cached. The current and future ones are counted.
+        long closedEnd = Math.max(from, Math.min(to, interval.floor(now)));
+        NavigableMap<Long, Long> counts = new TreeMap<>();
+        if (from < closedEnd) {
+            counts.putAll(timelineCache.getClosedBuckets(realm.getId(), interval.name(), from, closedEnd,
+                    (start, end) -> countCreatedUsers(interval, start, end)));
+        }
+        if (closedEnd < to && closedEnd <= now) {
+            counts.putAll(countCreatedUsers(interval, closedEnd, to));
+        }
 
-        return asr;
+        return buckets.stream()
+                .map(start -> new UsersTimelineBucketRepresentation(start, interval.next(start), counts.getOrDefault(start, 0L)))
+                .toList();
+    }
+
+    /**
+     * The database groups the users by bucket with integer arithmetic on CREATED_TIMESTAMP. Months are counted by day
+     * and folded.
+     *
+     * @return the number of users created by bucket start, empty buckets being absent
+     */
+    private NavigableMap<Long, Long> countCreatedUsers(UsersTimelineInterval interval, long from, long to) {
+        EntityManager em = session.getProvider(JpaConnectionProvider.class).getEntityManager();
+        // Constants are inlined: the same expression must appear in the select and group by clauses
+        String bucket = "u.createdTimestamp - mod(u.createdTimestamp - " + interval.getOrigin() + ", " + interval.getBucketMillis() + ")";
+        NavigableMap<Long, Long> res = new TreeMap<>();
+        em.createQuery("select " + bucket + ", count(u) from UserEntity u where u.realmId = :realmId "
+                        + "and u.createdTimestamp >= :from and u.createdTimestamp < :to group by " + bucket, Object[].class)
+                .setParameter("realmId", realm.getId())
+                .setParameter("from", from)
+                .setParameter("to", to)
+                .getResultStream()
+                .forEach(row -> res.merge(interval.floor(JpaResultCaster.toLong(row[0])), JpaResultCaster.toLong(row[1]), Long::sum));
+        return res;
     }
 }
@@ -0,0 +1,59 @@
+package io.cloudtrust.keycloak.services.resource.api.admin;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.PersistenceUnitUtil;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.jpa.UserAdapter;
+import org.keycloak.models.jpa.entities.UserEntity;
+
+import java.util.List;
+
+/**
+ * Loads the lazy collections of a page of users with a few IN queries, before the users are mapped to their full
+ * representation. Otherwise, attributes, required actions and credentials are loaded user by user.
+ * Federated identities are not part of the user representation and are not loaded.
+ * Only the JPA adapters are concerned: users served by the user cache or by a storage provider don't read the entities.
+ */
+public class UserEntitiesPrefetcher {
+    private static final int BATCH_SIZE = 500;
+    private static final String[] COLLECTIONS = {"attributes", "requiredActions", "credentials"};
+
+    private UserEntitiesPrefetcher() {
+    }
+
+    /**
+     * Initializes the collections of the user entities in the persistence context. Only the collections which are not
+     * loaded yet are fetched, for the users materialized as JPA adapters.
+     *
+     * @param session Keycloak session
+     * @param users   Users of the page
+     */
+    public static void prefetch(KeycloakSession session, List<UserModel> users) {
+        List<UserEntity> entities = users.stream()
+                .filter(UserAdapter.class::isInstance)
+                .map(user -> ((UserAdapter) user).getEntity())
+                .toList();
+        if (entities.size() < 2) {
+            return;
+        }
+        EntityManager em = session.getProvider(JpaConnectionProvider.class).getEntityManager();
+        PersistenceUnitUtil persistenceUnitUtil = em.getEntityManagerFactory().getPersistenceUnitUtil();
+        for (String collection : COLLECTIONS) {
+            List<String> ids = entities.stream()
+                    .filter(entity -> !persistenceUnitUtil.isLoaded(entity, collection))
+                    .map(UserEntity::getId)
+                    .toList();
+            if (ids.size() < 2) {
+                continue;
+            }
+            for (int start = 0; start < ids.size(); start += BATCH_SIZE) {
+                // One collection per query to avoid a cartesian product
+                em.createQuery("select u from UserEntity u left join fetch u." + collection + " where u.id in :ids", UserEntity.class)
+                        .setParameter("ids", ids.subList(start, Math.min(start + BATCH_SIZE, ids.size())))
+                        .getResultList();
+            }
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package io.cloudtrust.keycloak.services.resource.api.admin;
+
+import jakarta.ws.rs.BadRequestException;
+
+/**
+ * How the total count of a users search is computed
+ */
+public enum UsersCountMode {
+    /**
+     * Count all the matching users
+     */
+    EXACT("exact"),
+    /**
+     * Use a recently computed count of the same search if any
+     */
+    CACHED("cached"),
+    /**
+     * Don't count: only tell whether there are more users after the page
+     */
+    NONE("none");
+
+    private final String parameter;
+
+    UsersCountMode(String parameter) {
+        this.parameter = parameter;
+    }
+
+    /**
+     * @param value Value of the countMode query parameter
+     * @return the matching count mode, EXACT if value is empty
+     */
+    public static UsersCountMode fromParameter(String value) {
+        if (value == null || value.isEmpty()) {
+            return EXACT;
+        }
+        for (UsersCountMode mode : values()) {
+            if (mode.parameter.equals(value)) {
+                return mode;
+            }
+        }
+        throw new BadRequestException("Unsupported count mode " + value);
+    }
+}
@@ -0,0 +1,96 @@
+package io.cloudtrust.keycloak.services.resource.api.admin;
+
+import jakarta.ws.rs.BadRequestException;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * Opaque position in a users search: the sort key and the id of the last user of a page.
+ * The next page is the set of users strictly after this position in the (sort key, id) order.
+ */
+public class UsersCursor {
+    private static final String SEPARATOR = "\u0000";
+
+    private final UsersSortOrder sort;
+    private final String key;
+    private final String id;
+
+    public UsersCursor(UsersSortOrder sort, String key, String id) {
+        this.sort = sort;
+        this.key = key;
+        this.id = id;
+    }
+
+    /**
+     * Builds the cursor located on the given user
+     *
+     * @param sort             Sort order of the search
+     * @param id               Identifier of the last user of the page
+     * @param username         Username of this user
+     * @param email            Email of this user
+     * @param createdTimestamp Creation timestamp of this user
+     * @return cursor
+     */
+    public static UsersCursor of(UsersSortOrder sort, String id, String username, String email, Long createdTimestamp) {
+        String key = switch (sort) {
+            case CREATED_TIMESTAMP -> String.valueOf(createdTimestamp == null ? 0L : createdTimestamp);
+            case EMAIL -> email == null ? "" : email;
+            default -> username;
+        };
+        return new UsersCursor(sort, key, id);
+    }
+
+    public UsersSortOrder getSort() {
+        return sort;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * @return the key as a timestamp when sorting by creation date
+     */
+    public long getKeyAsLong() {
+        return Long.parseLong(key);
+    }
+
+    public String encode() {
+        String value = sort.getParameter() + SEPARATOR + id + SEPARATOR + key;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Decodes a cursor previously returned by the API
+     *
+     * @param value        Encoded cursor
+     * @param expectedSort Sort order of the current search
+     * @return the decoded cursor
+     * @throws BadRequestException if the value is not a valid cursor for the current sort order
+     */
+    public static UsersCursor decode(String value, UsersSortOrder expectedSort) {
+        String[] parts;
+        try {
+            parts = new String(Base64.getUrlDecoder().decode(value), StandardCharsets.UTF_8).split(SEPARATOR, 3);
+        } catch (IllegalArgumentException e) {
+            throw new BadRequestException("Invalid cursor");
+        }
+        if (parts.length != 3 || parts[1].isEmpty() || !expectedSort.getParameter().equals(parts[0])) {
+            throw new BadRequestException("Invalid cursor");
+        }
+        UsersCursor cursor = new UsersCursor(expectedSort, parts[2], parts[1]);
+        if (expectedSort == UsersSortOrder.CREATED_TIMESTAMP) {
+            try {
+                cursor.getKeyAsLong();
+            } catch (NumberFormatException e) {
+                throw new BadRequestException("Invalid cursor");
+            }
+        }
+        return cursor;
+    }
+}
@@ -0,0 +1,114 @@
+package io.cloudtrust.keycloak.services.resource.api.admin;
+
+import jakarta.persistence.EntityManager;
+import jakarta.ws.rs.core.StreamingOutput;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.UserProvider;
+import org.keycloak.models.jpa.JpaUserProvider;
+import org.keycloak.models.jpa.UserAdapter;
+import org.keycloak.models.jpa.entities.UserEntity;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.models.utils.ModelToRepresentation;
+import org.keycloak.storage.UserStorageUtil;
+import org.keycloak.util.JsonSerialization;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes the users matching a search as newline delimited JSON (one brief representation per line), ordered by id.
+ * Users are read with a forward-only cursor in a dedicated session: each entity is detached once written so that the
+ * persistence context does not grow with the export. The representations are built from the local storage, without
+ * going through the user cache nor the storage providers: federated users are exported as imported. An interrupted
+ * export can be resumed from the id of the last written user.
+ */
+public class UsersExporter implements StreamingOutput {
+    private static final int FETCH_SIZE = 500;
+    private static final int FLUSH_INTERVAL = 100;
+    private static final String[] SESSION_ATTRIBUTES = {UserModel.GROUPS, GetUsersQuery.FILTER_ROLES, GetUsersQuery.FILTER_ROLE_GROUPS,
+            GetUsersQuery.SEARCH_IDS, UserModel.INCLUDE_SERVICE_ACCOUNT};
+
+    private final KeycloakSessionFactory sessionFactory;
+    private final String realmId;
+    private final Map<String, String> attributes;
+    private final Map<String, Object> sessionAttributes = new HashMap<>();
+    private final String afterId;
+    private final boolean gzip;
+
+    /**
+     * @param session    Keycloak session of the request, where the search session attributes have been set
+     * @param realm      Realm we are exporting users from
+     * @param attributes Search attributes
+     * @param afterId    Id of the last user of a previous export (can be null)
+     * @param gzip       Whether the output is compressed
+     */
+    public UsersExporter(KeycloakSession session, RealmModel realm, Map<String, String> attributes, String afterId, boolean gzip) {
+        this.sessionFactory = session.getKeycloakSessionFactory();
+        this.realmId = realm.getId();
+        this.attributes = attributes;
+        this.afterId = afterId;
+        this.gzip = gzip;
+        for (String name : SESSION_ATTRIBUTES) {
+            Object value = session.getAttribute(name);
+            if (value != null) {
+                sessionAttributes.put(name, value);
+            }
+        }
+    }
+
+    @Override
+    public void write(OutputStream output) throws IOException {
+        OutputStream out = gzip ? new GZIPOutputStream(output) : output;
+        try {
+            KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> export(session, out));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        if (gzip) {
+            ((GZIPOutputStream) out).finish();
+        }
+        out.flush();
+    }
+
+    private void export(KeycloakSession session, OutputStream out) {
+        RealmModel realm = session.realms().getRealm(realmId);
+        session.getContext().setRealm(realm);
+        sessionAttributes.forEach(session::setAttribute);
+
+        EntityManager em = session.getProvider(JpaConnectionProvider.class).getEntityManager();
+        // The user cache would be filled with all the exported users
+        UserProvider localStorage = UserStorageUtil.userLocalStorage(session);
+        Function<UserEntity, UserModel> toUserModel = localStorage instanceof JpaUserProvider
+                ? entity -> new UserAdapter(session, realm, em, entity)
+                : entity -> localStorage.getUserById(realm, entity.getId());
+        try (Stream<UserEntity> entities = GetUsersQuery.scrollUserEntities(session, realm, attributes, afterId, FETCH_SIZE)) {
+            int count = 0;
+            Iterator<UserEntity> it = entities.iterator();
+            while (it.hasNext()) {
+                UserEntity entity = it.next();
+                UserModel user = toUserModel.apply(entity);
+                if (user != null) {
+                    out.write(JsonSerialization.writeValueAsBytes(ModelToRepresentation.toBriefRepresentation(user)));
+                    out.write('\n');
+                }
+                em.detach(entity);
+                if (++count % FLUSH_INTERVAL == 0) {
+                    out.flush();
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package io.cloudtrust.keycloak.services.resource.api.admin;
+
+import jakarta.ws.rs.BadRequestException;
+
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * Grouped counts which can be computed alongside a users search
+ */
+public enum UsersFacet {
+    /**
+     * Count of the matching users by enabled flag
+     */
+    ENABLED("enabled"),
+    /**
+     * Count of the matching users by email verified flag
+     */
+    EMAIL_VERIFIED("emailVerified"),
+    /**
+     * Count of the matching users linked to each identity provider
+     */
+    IDP_ALIAS("idpAlias");
+
+    private final String parameter;
+
+    UsersFacet(String parameter) {
+        this.parameter = parameter;
+    }
+
+    public String getParameter() {
+        return parameter;
+    }
+
+    /**
+     * @param value Value of the facets query parameter: comma separated list of facets
+     * @return the requested facets, empty if value is empty
+     */
+    public static Set<UsersFacet> fromParameter(String value) {
+        Set<UsersFacet> res = EnumSet.noneOf(UsersFacet.class);
+        if (value == null || value.isBlank()) {
+            return res;
+        }
+        for (String name : value.split(",")) {
+            String trimmed = name.trim();
+            if (!trimmed.isEmpty()) {
+                res.add(fromName(trimmed));
+            }
+        }
+        return res;
+    }
+
+    private static UsersFacet fromName(String name) {
+        for (UsersFacet facet : values()) {
+            if (facet.parameter.equals(name)) {
+                return facet;
+            }
+        }
+        throw new BadRequestException("Unsupported facet " + name);
+    }
+}
@@ -0,0 +1,111 @@
+package io.cloudtrust.keycloak.services.resource.api.admin;
+
+import jakarta.ws.rs.BadRequestException;
+import org.keycloak.representations.idm.UserRepresentation;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiConsumer;
+
+/**
+ * Sparse fieldset of the users list, like fields=id,username,email,attributes.phoneNumber. Only the columns of the
+ * requested fields are selected by the search query and the representations are built from them. The id and the
+ * field the users are sorted by are always returned.
+ */
+public class UsersFields {
+    static final String ATTRIBUTES_PREFIX = "attributes.";
+
+    private static final Map<String, Field> FIELDS = new LinkedHashMap<>();
+
+    static {
+        FIELDS.put("id", new Field("u.id", (rep, value) -> rep.setId((String) value)));
+        FIELDS.put("username", new Field("u.username", (rep, value) -> rep.setUsername((String) value)));
+        FIELDS.put("email", new Field("u.email", (rep, value) -> rep.setEmail((String) value)));
+        FIELDS.put("firstName", new Field("u.firstName", (rep, value) -> rep.setFirstName((String) value)));
+        FIELDS.put("lastName", new Field("u.lastName", (rep, value) -> rep.setLastName((String) value)));
+        FIELDS.put("enabled", new Field("u.enabled", (rep, value) -> rep.setEnabled((Boolean) value)));
+        FIELDS.put("emailVerified", new Field("u.emailVerified", (rep, value) -> rep.setEmailVerified((Boolean) value)));
+        FIELDS.put("createdTimestamp", new Field("u.createdTimestamp", (rep, value) -> rep.setCreatedTimestamp((Long) value)));
+        FIELDS.put("federationLink", new Field("u.federationLink", (rep, value) -> rep.setFederationLink((String) value)));
+    }
+
+    private record Field(String column, BiConsumer<UserRepresentation, Object> setter) {
+    }
+
+    private final List<Field> fields = new ArrayList<>();
+    private final List<String> attributes = new ArrayList<>();
+    private final String select;
+
+    private UsersFields(Set<String> names, Set<String> attributeNames) {
+        names.forEach(name -> fields.add(FIELDS.get(name)));
+        attributes.addAll(attributeNames);
+        select = String.join(", ", fields.stream().map(Field::column).toList());
+    }
+
+    /**
+     * @param value Comma separated list of fields
+     * @param sort  Sort order of the search
+     * @return the fieldset, null if no field is requested
+     * @throws BadRequestException if a field is not supported
+     */
+    public static UsersFields fromParameter(String value, UsersSortOrder sort) {
+        if (value == null || value.isBlank()) {
+            return null;
+        }
+        Set<String> names = new LinkedHashSet<>();
+        Set<String> attributeNames = new LinkedHashSet<>();
+        names.add("id");
+        names.add(sort.getParameter());
+        for (String name : value.split(",")) {
+            name = name.trim();
+            if (name.startsWith(ATTRIBUTES_PREFIX) && name.length() > ATTRIBUTES_PREFIX.length()) {
+                attributeNames.add(name.substring(ATTRIBUTES_PREFIX.length()));
+            } else if (FIELDS.containsKey(name)) {
+                names.add(name);
+            } else if (!name.isEmpty()) {
+                throw new BadRequestException("Unsupported field " + name);
+            }
+        }
+        // Columns are always selected in the same order so that a fieldset always gives the same statement
+        Set<String> ordered = new LinkedHashSet<>(FIELDS.keySet());
+        ordered.retainAll(names);
+        return new UsersFields(ordered, attributeNames);
+    }
+
+    /**
+     * @return the selected JPQL columns
+     */
+    public String getSelect() {
+        return select;
+    }
+
+    /**
+     * @return the number of selected columns
+     */
+    public int getWidth() {
+        return fields.size();
+    }
+
+    /**
+     * @return the names of the requested custom attributes
+     */
+    public List<String> getAttributes() {
+        return attributes;
+    }
+
+    /**
+     * @param row Selected columns
+     * @return the representation holding the selected columns
+     */
+    public UserRepresentation toRepresentation(Object[] row) {
+        UserRepresentation rep = new UserRepresentation();
+        for (int i = 0; i < fields.size(); i++) {
+            fields.get(i).setter().accept(rep, row[i]);
+        }
+        return rep;
+    }
+}
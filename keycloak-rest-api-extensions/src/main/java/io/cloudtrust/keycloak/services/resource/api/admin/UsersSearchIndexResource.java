@@ -0,0 +1,63 @@
+package io.cloudtrust.keycloak.services.resource.api.admin;
+
+import io.cloudtrust.keycloak.representations.idm.UsersSearchIndexRepresentation;
+import io.cloudtrust.keycloak.services.resource.api.index.UsersSearchIndexes;
+import jakarta.ws.rs.GET;
+import jakarta.ws.rs.POST;
+import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Response;
+import org.jboss.resteasy.reactive.NoCache;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.services.ErrorResponse;
+import org.keycloak.services.resources.admin.permissions.AdminPermissionEvaluator;
+
+/**
+ * Users search index of a realm
+ */
+public class UsersSearchIndexResource {
+    private final KeycloakSession session;
+    private final AdminPermissionEvaluator auth;
+    private final UsersSearchIndexes indexes;
+    private final RealmModel realm;
+
+    public UsersSearchIndexResource(KeycloakSession session, AdminPermissionEvaluator auth, UsersSearchIndexes indexes) {
+        this.session = session;
+        this.auth = auth;
+        this.indexes = indexes;
+        this.realm = session.getContext().getRealm();
+    }
+
+    /**
+     * Compares the index of the realm with the database
+     *
+     * @return the consistency report
+     */
+    @GET
+    @NoCache
+    @Produces(MediaType.APPLICATION_JSON)
+    public UsersSearchIndexRepresentation checkIndex() {
+        auth.users().requireView();
+        return indexes.check(session, realm);
+    }
+
+    /**
+     * Builds the index of the realm from the database. Once built, the index is used by the users searches of this node.
+     *
+     * @return the consistency report of the new index
+     */
+    @POST
+    @NoCache
+    @Produces(MediaType.APPLICATION_JSON)
+    public UsersSearchIndexRepresentation rebuildIndex() {
+        auth.users().requireManage();
+        if (!indexes.isEnabled()) {
+            throw ErrorResponse.error("Users search index is disabled", Response.Status.BAD_REQUEST);
+        }
+        if (!indexes.rebuild(session, realm)) {
+            throw ErrorResponse.error("Too many users for the users search index", Response.Status.BAD_REQUEST);
+        }
+        return indexes.check(session, realm);
+    }
+}
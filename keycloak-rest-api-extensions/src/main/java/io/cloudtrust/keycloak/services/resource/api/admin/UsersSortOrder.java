@@ -0,0 +1,39 @@
+package io.cloudtrust.keycloak.services.resource.api.admin;
+
+import jakarta.ws.rs.BadRequestException;
+
+/**
+ * Orderings supported by the users search. Each ordering is completed with the user id so that it is stable and can be
+ * used for keyset pagination.
+ */
+public enum UsersSortOrder {
+    USERNAME("username"),
+    CREATED_TIMESTAMP("createdTimestamp"),
+    EMAIL("email");
+
+    private final String parameter;
+
+    UsersSortOrder(String parameter) {
+        this.parameter = parameter;
+    }
+
+    public String getParameter() {
+        return parameter;
+    }
+
+    /**
+     * @param value Value of the sort query parameter
+     * @return the matching sort order, USERNAME if value is empty
+     */
+    public static UsersSortOrder fromParameter(String value) {
+        if (value == null || value.isEmpty()) {
+            return USERNAME;
+        }
+        for (UsersSortOrder order : values()) {
+            if (order.parameter.equals(value)) {
+                return order;
+            }
+        }
+        throw new BadRequestException("Unsupported sort order " + value);
+    }
+}
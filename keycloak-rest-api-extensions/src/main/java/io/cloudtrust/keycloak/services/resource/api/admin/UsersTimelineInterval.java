@@ -0,0 +1,96 @@
+package io.cloudtrust.keycloak.services.resource.api.admin;
+
+import jakarta.ws.rs.BadRequestException;
+
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Width of the buckets of the users creation timeline. Buckets are aligned on UTC days, weeks starting on Monday and
+ * months.
+ */
+public enum UsersTimelineInterval {
+    DAY("day", TimeUnit.DAYS.toMillis(1), 0),
+    /**
+     * Weeks are aligned on Monday 1970-01-05
+     */
+    WEEK("week", TimeUnit.DAYS.toMillis(7), TimeUnit.DAYS.toMillis(4)),
+    /**
+     * Months are counted by day then folded, as their length varies
+     */
+    MONTH("month", TimeUnit.DAYS.toMillis(1), 0);
+
+    private final String parameter;
+    private final long bucketMillis;
+    private final long origin;
+
+    UsersTimelineInterval(String parameter, long bucketMillis, long origin) {
+        this.parameter = parameter;
+        this.bucketMillis = bucketMillis;
+        this.origin = origin;
+    }
+
+    /**
+     * @return the width of the buckets computed by the database
+     */
+    public long getBucketMillis() {
+        return bucketMillis;
+    }
+
+    /**
+     * @return a timestamp starting a bucket computed by the database
+     */
+    public long getOrigin() {
+        return origin;
+    }
+
+    /**
+     * @param timestamp Timestamp in milliseconds
+     * @return the start of the bucket including the timestamp
+     */
+    public long floor(long timestamp) {
+        if (this == MONTH) {
+            ZonedDateTime date = Instant.ofEpochMilli(timestamp).atZone(ZoneOffset.UTC);
+            return date.withDayOfMonth(1).toLocalDate().atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli();
+        }
+        return timestamp - Math.floorMod(timestamp - origin, bucketMillis);
+    }
+
+    /**
+     * @param bucketStart Start of a bucket
+     * @return the start of the following bucket
+     */
+    public long next(long bucketStart) {
+        if (this == MONTH) {
+            return Instant.ofEpochMilli(bucketStart).atZone(ZoneOffset.UTC).plusMonths(1).toInstant().toEpochMilli();
+        }
+        return bucketStart + bucketMillis;
+    }
+
+    /**
+     * @param timestamp Timestamp in milliseconds
+     * @return the start of the first bucket starting at or after the timestamp
+     */
+    public long ceil(long timestamp) {
+        long start = floor(timestamp);
+        return start == timestamp ? start : next(start);
+    }
+
+    /**
+     * @param value Value of the interval query parameter
+     * @return the matching interval, DAY if value is empty
+     */
+    public static UsersTimelineInterval fromParameter(String value) {
+        if (value == null || value.isEmpty()) {
+            return DAY;
+        }
+        for (UsersTimelineInterval interval : values()) {
+            if (interval.parameter.equals(value)) {
+                return interval;
+            }
+        }
+        throw new BadRequestException("Unsupported interval " + value);
+    }
+}
@@ -0,0 +1,212 @@
+package io.cloudtrust.keycloak.services.resource.api.cache;
+
+import io.cloudtrust.keycloak.services.resource.api.ApiConfig;
+import org.keycloak.events.Event;
+import org.keycloak.events.EventListenerProvider;
+import org.keycloak.events.EventType;
+import org.keycloak.events.admin.AdminEvent;
+import org.keycloak.events.admin.OperationType;
+import org.keycloak.events.admin.ResourceType;
+import org.keycloak.models.AbstractKeycloakTransaction;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Invalidates the node caches of the API when users are created, updated or deleted or when roles change, and
+ * updates the users search index. Both are done once the transaction completes so that a count computed concurrently cannot be cached with the
+ * previous state and the index gets the committed values. Created users are added to the users statistics, other
+ * changes of users or of their credentials mark the statistics of the realm for reconciliation.
+ */
+public class ApiCachesInvalidationListener implements EventListenerProvider {
+    private static final Set<EventType> USER_CHANGES = EnumSet.of(EventType.REGISTER, EventType.UPDATE_PROFILE,
+            EventType.UPDATE_EMAIL, EventType.VERIFY_EMAIL, EventType.DELETE_ACCOUNT, EventType.FEDERATED_IDENTITY_LINK,
+            EventType.REMOVE_FEDERATED_IDENTITY);
+    private static final Set<EventType> CREDENTIAL_CHANGES = EnumSet.of(EventType.UPDATE_PASSWORD, EventType.UPDATE_TOTP,
+            EventType.REMOVE_TOTP, EventType.UPDATE_CREDENTIAL, EventType.REMOVE_CREDENTIAL);
+    private static final Set<ResourceType> STATISTICS_RESOURCES = EnumSet.of(ResourceType.USER, ResourceType.USER_FEDERATION_PROVIDER);
+    private static final Set<ResourceType> USER_RESOURCES = EnumSet.of(ResourceType.USER, ResourceType.GROUP_MEMBERSHIP,
+            ResourceType.REALM_ROLE_MAPPING, ResourceType.CLIENT_ROLE_MAPPING, ResourceType.USER_FEDERATION_PROVIDER);
+    private static final Set<ResourceType> ROLE_RESOURCES = EnumSet.of(ResourceType.REALM_ROLE, ResourceType.CLIENT_ROLE,
+            ResourceType.GROUP, ResourceType.REALM_ROLE_MAPPING, ResourceType.CLIENT_ROLE_MAPPING, ResourceType.CLIENT);
+    private static final String USERS_PATH = "users/";
+    private static final String GROUPS_PATH = "groups/";
+
+    private final KeycloakSession session;
+    private final ApiConfig apiConfig;
+    private final Map<String, Set<String>> changedUsers = new HashMap<>();
+    private final Set<String> changedRoles = new HashSet<>();
+    private final Map<String, Set<String>> createdUsers = new HashMap<>();
+    private final Set<String> changedStatistics = new HashSet<>();
+    private boolean enlisted;
+    private long changeTime;
+
+    public ApiCachesInvalidationListener(KeycloakSession session, ApiConfig apiConfig) {
+        this.session = session;
+        this.apiConfig = apiConfig;
+    }
+
+    @Override
+    public void onEvent(Event event) {
+        if (USER_CHANGES.contains(event.getType())) {
+            usersChanged(event.getRealmId(), event.getUserId());
+        }
+        if (event.getType() == EventType.REGISTER) {
+            userCreated(event.getRealmId(), event.getUserId());
+        } else if (USER_CHANGES.contains(event.getType()) || CREDENTIAL_CHANGES.contains(event.getType())) {
+            statisticsChanged(event.getRealmId());
+        }
+    }
+
+    @Override
+    public void onEvent(AdminEvent event, boolean includeRepresentation) {
+        if (USER_RESOURCES.contains(event.getResourceType()) && event.getOperationType() != OperationType.ACTION) {
+            usersChanged(event.getRealmId(), event.getResourceType() == ResourceType.USER ? getUserId(event.getResourcePath()) : null);
+        } else if (isPartialImportOfUser(event)) {
+            usersChanged(event.getRealmId(), getUserId(event.getResourcePath()));
+        }
+        if (isUserCreation(event)) {
+            userCreated(event.getRealmId(), getUserId(event.getResourcePath()));
+        } else if (STATISTICS_RESOURCES.contains(event.getResourceType()) && event.getOperationType() != OperationType.ACTION) {
+            statisticsChanged(event.getRealmId());
+        }
+        if (isRolesGraphChange(event)) {
+            rolesChanged(event.getRealmId());
+        }
+    }
+
+    /**
+     * @return whether the event changes a role, a composite role or the roles mapped to a group
+     */
+    static boolean isRolesGraphChange(AdminEvent event) {
+        if (!ROLE_RESOURCES.contains(event.getResourceType()) || event.getOperationType() == OperationType.ACTION) {
+            return false;
+        }
+        return switch (event.getResourceType()) {
+            case REALM_ROLE_MAPPING, CLIENT_ROLE_MAPPING -> event.getResourcePath() != null && event.getResourcePath().startsWith(GROUPS_PATH);
+            // Removing a client removes its roles
+            case CLIENT -> event.getOperationType() == OperationType.DELETE;
+            default -> true;
+        };
+    }
+
+    /**
+     * @return whether the event reports a user created or overwritten by a partial import of the realm, with a resource
+     * path like users/{id}
+     */
+    static boolean isPartialImportOfUser(AdminEvent event) {
+        return event.getResourceType() == ResourceType.REALM
+                && (event.getOperationType() == OperationType.CREATE || event.getOperationType() == OperationType.UPDATE)
+                && getUserId(event.getResourcePath()) != null;
+    }
+
+    /**
+     * @return whether the event is the creation of a user, with a resource path like users/{id}
+     */
+    static boolean isUserCreation(AdminEvent event) {
+        return event.getResourceType() == ResourceType.USER && event.getOperationType() == OperationType.CREATE
+                && event.getResourcePath() != null && event.getResourcePath().indexOf('/', USERS_PATH.length()) < 0
+                && getUserId(event.getResourcePath()) != null;
+    }
+
+    /**
+     * @return the user id of a resource path like users/{id} or users/{id}/..., null for other paths
+     */
+    static String getUserId(String resourcePath) {
+        if (resourcePath == null || !resourcePath.startsWith(USERS_PATH)) {
+            return null;
+        }
+        int end = resourcePath.indexOf('/', USERS_PATH.length());
+        String userId = end < 0 ? resourcePath.substring(USERS_PATH.length()) : resourcePath.substring(USERS_PATH.length(), end);
+        return userId.isEmpty() ? null : userId;
+    }
+
+    private void usersChanged(String realmId, String userId) {
+        if (realmId == null) {
+            return;
+        }
+        // Invalidate right away to stop serving the previous counts, and again once the change is visible
+        apiConfig.getUsersCountCache().invalidate(realmId);
+        enlistAfterCommit();
+        Set<String> userIds = changedUsers.computeIfAbsent(realmId, k -> new HashSet<>());
+        if (userId != null) {
+            userIds.add(userId);
+        }
+    }
+
+    private void rolesChanged(String realmId) {
+        if (realmId == null) {
+            return;
+        }
+        apiConfig.getRolesCache().invalidate(realmId);
+        enlistAfterCommit();
+        changedRoles.add(realmId);
+    }
+
+    private void userCreated(String realmId, String userId) {
+        if (realmId == null || userId == null) {
+            return;
+        }
+        enlistAfterCommit();
+        createdUsers.computeIfAbsent(realmId, k -> new HashSet<>()).add(userId);
+    }
+
+    private void statisticsChanged(String realmId) {
+        if (realmId == null) {
+            return;
+        }
+        apiConfig.getUsersStatisticsCache().markDirty(realmId);
+        enlistAfterCommit();
+        changedStatistics.add(realmId);
+    }
+
+    private void enlistAfterCommit() {
+        if (!enlisted) {
+            enlisted = true;
+            // Before the changes are committed
+            changeTime = System.currentTimeMillis();
+            session.getTransactionManager().enlistAfterCompletion(new AbstractKeycloakTransaction() {
+                @Override
+                protected void commitImpl() {
+                    afterCommit();
+                }
+
+                @Override
+                protected void rollbackImpl() {
+                    // Nothing changed
+                }
+            });
+        }
+    }
+
+    private void afterCommit() {
+        changedRoles.forEach(apiConfig.getRolesCache()::invalidate);
+        changedRoles.clear();
+        changedUsers.keySet().forEach(apiConfig.getUsersCountCache()::invalidate);
+        changedStatistics.forEach(apiConfig.getUsersStatisticsCache()::markDirty);
+        changedStatistics.clear();
+        if (!createdUsers.isEmpty()) {
+            KeycloakModelUtils.runJobInTransaction(session.getKeycloakSessionFactory(), s ->
+                    createdUsers.forEach((realmId, userIds) ->
+                            userIds.forEach(userId -> apiConfig.getUsersStatisticsCache().userCreated(s, realmId, userId, changeTime))));
+            createdUsers.clear();
+        }
+        if (apiConfig.getUsersSearchIndexes().isEnabled()) {
+            KeycloakModelUtils.runJobInTransaction(session.getKeycloakSessionFactory(), s ->
+                    changedUsers.forEach((realmId, userIds) ->
+                            userIds.forEach(userId -> apiConfig.getUsersSearchIndexes().reindex(s, realmId, userId))));
+        }
+        changedUsers.clear();
+        enlisted = false;
+    }
+
+    @Override
+    public void close() {
+        // Nothing to close
+    }
+}
@@ -0,0 +1,104 @@
+package io.cloudtrust.keycloak.services.resource.api.cache;
+
+import io.cloudtrust.keycloak.services.resource.ExtendedAPIFactory;
+import io.cloudtrust.keycloak.services.resource.api.ApiConfig;
+import org.keycloak.Config;
+import org.keycloak.events.EventListenerProvider;
+import org.keycloak.events.EventListenerProviderFactory;
+import org.keycloak.models.AbstractKeycloakTransaction;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.GroupModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RoleContainerModel;
+import org.keycloak.models.RoleModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.services.resource.RealmResourceProvider;
+
+/**
+ * Global event listener: it does not need to be enabled in the realms configuration
+ */
+public class ApiCachesInvalidationListenerFactory implements EventListenerProviderFactory {
+    public static final String ID = "ct-api-caches-invalidation";
+
+    private ApiConfig apiConfig;
+
+    @Override
+    public EventListenerProvider create(KeycloakSession session) {
+        return new ApiCachesInvalidationListener(session, apiConfig);
+    }
+
+    @Override
+    public void init(Config.Scope config) {
+        // Nothing to do
+    }
+
+    @Override
+    public void postInit(KeycloakSessionFactory factory) {
+        apiConfig = ((ExtendedAPIFactory) factory.getProviderFactory(RealmResourceProvider.class, ExtendedAPIFactory.ID)).getApiConfig();
+        // Users removed without event (realm removal, user storage synchronization, ...)
+        factory.register(event -> {
+            if (event instanceof UserModel.UserRemovedEvent removed) {
+                apiConfig.getUsersCountCache().invalidate(removed.getRealm().getId());
+                apiConfig.getUsersStatisticsCache().markDirty(removed.getRealm().getId());
+                apiConfig.getUsersSearchIndexes().removeUser(removed.getRealm().getId(), removed.getUser().getId());
+            } else if (event instanceof RealmModel.RealmRemovedEvent removed) {
+                apiConfig.getUsersCountCache().invalidate(removed.getRealm().getId());
+                apiConfig.getUsersSearchIndexes().removeRealm(removed.getRealm().getId());
+                apiConfig.getGroupsCache().invalidate(removed.getRealm().getId());
+                apiConfig.getRolesCache().invalidate(removed.getRealm().getId());
+                apiConfig.getUsersStatisticsCache().invalidate(removed.getRealm().getId());
+                apiConfig.getUsersTimelineCache().invalidate(removed.getRealm().getId());
+                apiConfig.getPasswordHashesCache().invalidate(removed.getRealm().getId());
+            } else if (event instanceof GroupModel.GroupCreatedEvent created) {
+                groupsChanged(created.getKeycloakSession(), created.getRealm().getId());
+            } else if (event instanceof GroupModel.GroupRemovedEvent removed) {
+                groupsChanged(removed.getKeycloakSession(), removed.getRealm().getId());
+                apiConfig.getRolesCache().invalidate(removed.getRealm().getId());
+            } else if (event instanceof RoleContainerModel.RoleRemovedEvent removed) {
+                apiConfig.getRolesCache().invalidate(getRealmId(removed.getRole()));
+            } else if (event instanceof GroupModel.GroupPathChangeEvent moved) {
+                groupsChanged(moved.getKeycloakSession(), moved.getRealm().getId());
+            }
+        });
+    }
+
+    /**
+     * The groups hierarchy is dropped right away and once the change is committed, so that a hierarchy loaded
+     * concurrently is not kept
+     */
+    private void groupsChanged(KeycloakSession session, String realmId) {
+        apiConfig.getGroupsCache().invalidate(realmId);
+        session.getTransactionManager().enlistAfterCompletion(new AbstractKeycloakTransaction() {
+            @Override
+            protected void commitImpl() {
+                apiConfig.getGroupsCache().invalidate(realmId);
+            }
+
+            @Override
+            protected void rollbackImpl() {
+                apiConfig.getGroupsCache().invalidate(realmId);
+            }
+        });
+    }
+
+    private static String getRealmId(RoleModel role) {
+        return role.isClientRole() ? ((ClientModel) role.getContainer()).getRealm().getId() : role.getContainerId();
+    }
+
+    @Override
+    public boolean isGlobal() {
+        return true;
+    }
+
+    @Override
+    public void close() {
+        // Nothing to close
+    }
+
+    @Override
+    public String getId() {
+        return ID;
+    }
+}
@@ -0,0 +1,134 @@
+package io.cloudtrust.keycloak.services.resource.api.cache;
+
+import jakarta.persistence.EntityManager;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.jpa.entities.GroupEntity;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-node cache of the groups hierarchy of each realm. The hierarchy of a realm is loaded with a single query and
+ * dropped when a group of the realm is created, moved or removed on this node, or when it is older than the maximum age.
+ */
+public class GroupsCache {
+    private static final long DEFAULT_MAX_AGE_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    private final Map<String, GroupTree> realms = new ConcurrentHashMap<>();
+    private long maxAgeMillis = DEFAULT_MAX_AGE_MILLIS;
+
+    public long getMaxAgeMillis() {
+        return maxAgeMillis;
+    }
+
+    public void setMaxAgeMillis(long maxAgeMillis) {
+        this.maxAgeMillis = maxAgeMillis;
+    }
+
+    /**
+     * Groups hierarchy of a realm. Descendants of a group are computed once per tree.
+     */
+    public static class GroupTree {
+        private final Map<String, String> names = new HashMap<>();
+        private final Map<String, String> parents = new HashMap<>();
+        private final Map<String, List<String>> children = new HashMap<>();
+        private final Map<String, Set<String>> descendants = new ConcurrentHashMap<>();
+        private final long created = System.currentTimeMillis();
+
+        GroupTree(Collection<Object[]> groups) {
+            for (Object[] group : groups) {
+                String id = (String) group[0];
+                String parentId = (String) group[2];
+                names.put(id, (String) group[1]);
+                if (parentId != null && !GroupEntity.TOP_PARENT_ID.equals(parentId)) {
+                    parents.put(id, parentId);
+                    children.computeIfAbsent(parentId, k -> new ArrayList<>()).add(id);
+                }
+            }
+        }
+
+        /**
+         * @param groupId Group identifier
+         * @return the group and all its subgroups, at any depth. An unknown group is returned as is.
+         */
+        public Set<String> getSubtree(String groupId) {
+            return descendants.computeIfAbsent(groupId, id -> {
+                Set<String> res = new HashSet<>();
+                Deque<String> toVisit = new ArrayDeque<>();
+                toVisit.add(id);
+                while (!toVisit.isEmpty()) {
+                    String current = toVisit.poll();
+                    if (res.add(current)) {
+                        toVisit.addAll(children.getOrDefault(current, Collections.emptyList()));
+                    }
+                }
+                return Collections.unmodifiableSet(res);
+            });
+        }
+
+        /**
+         * @param groupId Group identifier
+         * @return the path of the group, like /parent/child, or null if the group is unknown
+         */
+        public String getPath(String groupId) {
+            if (!names.containsKey(groupId)) {
+                return null;
+            }
+            List<String> path = new ArrayList<>();
+            Set<String> visited = new HashSet<>();
+            for (String id = groupId; id != null && visited.add(id); id = parents.get(id)) {
+                path.add(names.get(id));
+            }
+            StringBuilder res = new StringBuilder();
+            for (int i = path.size() - 1; i >= 0; i--) {
+                res.append('/').append(path.get(i));
+            }
+            return res.toString();
+        }
+    }
+
+    /**
+     * @param session Keycloak session, used to load the hierarchy when it is not cached
+     * @param realmId Realm identifier
+     * @return the groups hierarchy of the realm
+     */
+    public GroupTree get(KeycloakSession session, String realmId) {
+        GroupTree tree = realms.get(realmId);
+        if (tree == null || System.currentTimeMillis() - tree.created > maxAgeMillis) {
+            EntityManager em = session.getProvider(JpaConnectionProvider.class).getEntityManager();
+            tree = new GroupTree(em.createQuery("select g.id, g.name, g.parentId from GroupEntity g where g.realm = :realmId", Object[].class)
+                    .setParameter("realmId", realmId)
+                    .getResultList());
+            realms.put(realmId, tree);
+        }
+        return tree;
+    }
+
+    /**
+     * @param session  Keycloak session
+     * @param realmId  Realm identifier
+     * @param groupIds Group identifiers
+     * @return the groups and all their subgroups
+     */
+    public Set<String> getSubtrees(KeycloakSession session, String realmId, Collection<String> groupIds) {
+        GroupTree tree = get(session, realmId);
+        Set<String> res = new HashSet<>();
+        groupIds.forEach(groupId -> res.addAll(tree.getSubtree(groupId)));
+        return res;
+    }
+
+    public void invalidate(String realmId) {
+        realms.remove(realmId);
+    }
+}
@@ -0,0 +1,136 @@
+package io.cloudtrust.keycloak.services.resource.api.cache;
+
+import io.cloudtrust.keycloak.representations.idm.PasswordHashStatisticsRepresentation;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import jakarta.persistence.EntityManager;
+import org.hibernate.jpa.HibernateHints;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.credential.PasswordCredentialModel;
+import org.keycloak.util.JsonSerialization;
+
+import java.io.IOException;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Per-node cache of the number of passwords of each realm by hash algorithm and number of iterations. The credential
+ * data of the passwords of a realm is streamed and only the top-level algorithm and iterations fields are read. Passwords
+ * changed since the breakdown was computed are taken into account once it is older than the maximum age.
+ */
+public class PasswordHashesCache {
+    private static final long DEFAULT_MAX_AGE_MILLIS = TimeUnit.HOURS.toMillis(1);
+    private static final int FETCH_SIZE = 1000;
+    private static final Comparator<PasswordHashStatisticsRepresentation> ORDER =
+            Comparator.comparing(PasswordHashStatisticsRepresentation::getAlgorithm, Comparator.nullsFirst(Comparator.naturalOrder()))
+                    .thenComparing(PasswordHashStatisticsRepresentation::getHashIterations, Comparator.nullsFirst(Comparator.naturalOrder()));
+
+    private final Map<String, Entry> realms = new ConcurrentHashMap<>();
+    private long maxAgeMillis = DEFAULT_MAX_AGE_MILLIS;
+
+    private record Entry(List<PasswordHashStatisticsRepresentation> hashes, long created) {
+    }
+
+    private record Hash(String algorithm, Integer hashIterations) {
+    }
+
+    public long getMaxAgeMillis() {
+        return maxAgeMillis;
+    }
+
+    public void setMaxAgeMillis(long maxAgeMillis) {
+        this.maxAgeMillis = maxAgeMillis;
+    }
+
+    /**
+     * @param session Keycloak session, used to compute the breakdown when it is not cached
+     * @param realmId Realm identifier
+     * @return the number of passwords by algorithm and iterations, sorted by algorithm and iterations
+     */
+    public List<PasswordHashStatisticsRepresentation> get(KeycloakSession session, String realmId) {
+        List<PasswordHashStatisticsRepresentation> hashes = getIfPresent(realmId);
+        if (hashes == null) {
+            long created = System.currentTimeMillis();
+            EntityManager em = session.getProvider(JpaConnectionProvider.class).getEntityManager();
+            try (Stream<String> credentialData = em.createQuery("select c.credentialData from UserEntity u join u.credentials c "
+                            + "where u.realmId = :realmId and c.type = :type", String.class)
+                    .setParameter("realmId", realmId)
+                    .setParameter("type", PasswordCredentialModel.TYPE)
+                    .setHint(HibernateHints.HINT_FETCH_SIZE, FETCH_SIZE)
+                    .setHint(HibernateHints.HINT_READ_ONLY, true)
+                    .getResultStream()) {
+                hashes = count(credentialData);
+            }
+            realms.put(realmId, new Entry(hashes, created));
+        }
+        return hashes;
+    }
+
+    /**
+     * @param realmId Realm identifier
+     * @return the number of passwords by algorithm and iterations, null if the breakdown is not cached or too old
+     */
+    public List<PasswordHashStatisticsRepresentation> getIfPresent(String realmId) {
+        Entry entry = realms.get(realmId);
+        return entry == null || System.currentTimeMillis() - entry.created() > maxAgeMillis ? null : entry.hashes();
+    }
+
+    /**
+     * @param credentialData CREDENTIAL_DATA of password credentials
+     * @return the number of passwords by algorithm and iterations, sorted by algorithm and iterations
+     */
+    static List<PasswordHashStatisticsRepresentation> count(Stream<String> credentialData) {
+        Map<Hash, Long> counts = new HashMap<>();
+        credentialData.forEach(data -> counts.merge(toHash(data), 1L, Long::sum));
+        return counts.entrySet().stream()
+                .map(e -> new PasswordHashStatisticsRepresentation(e.getKey().algorithm(), e.getKey().hashIterations(), e.getValue()))
+                .sorted(ORDER)
+                .toList();
+    }
+
+    /**
+     * Reads the top-level algorithm and iterations fields of the credential data, skipping the nested values
+     *
+     * @param data CREDENTIAL_DATA of a password credential
+     * @return the hash, with null fields when they are missing, have an unexpected type or the data is malformed
+     */
+    private static Hash toHash(String data) {
+        String algorithm = null;
+        Integer hashIterations = null;
+        if (data != null) {
+            try (JsonParser parser = JsonSerialization.mapper.getFactory().createParser(data)) {
+                if (parser.nextToken() == JsonToken.START_OBJECT) {
+                    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                        String field = parser.currentName();
+                        JsonToken value = parser.nextToken();
+                        if ("algorithm".equals(field) && value == JsonToken.VALUE_STRING) {
+                            algorithm = parser.getText();
+                        } else if ("hashIterations".equals(field) && value == JsonToken.VALUE_NUMBER_INT) {
+                            hashIterations = parser.getIntValue();
+                        } else {
+                            parser.skipChildren();
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                // Malformed credential data: the fields read so far are kept
+            }
+        }
+        return new Hash(algorithm, hashIterations);
+    }
+
+    /**
+     * Forgets the breakdown of a realm
+     *
+     * @param realmId Realm identifier
+     */
+    public void invalidate(String realmId) {
+        realms.remove(realmId);
+    }
+}
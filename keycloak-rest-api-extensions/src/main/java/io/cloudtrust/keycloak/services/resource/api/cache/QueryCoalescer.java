@@ -0,0 +1,116 @@
+package io.cloudtrust.keycloak.services.resource.api.cache;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Per-node coalescing of expensive read queries: concurrent executions of the same query with the same parameters share
+ * a single execution, done by the first caller, and all get its result. A result can also be reused by the callers
+ * arriving shortly after it has been computed. Failures are not reused.
+ * <p>
+ * Results are shared between requests: they must not be modified by the callers.
+ */
+public class QueryCoalescer {
+    private static final long DEFAULT_REUSE_MILLIS = 1000;
+    private static final int MAX_FLIGHTS = 1000;
+    private static final String METER_NAME = "keycloak.api.coalesced.queries";
+    private static final String METER_DESCRIPTION = "Executions of coalesced queries";
+    private static final String METER_QUERY_TAG = "query";
+    private static final String METER_RESULT_TAG = "result";
+
+    private final Map<String, Flight> flights = new ConcurrentHashMap<>();
+    private final Map<String, Meters> meters = new ConcurrentHashMap<>();
+    private long reuseMillis = DEFAULT_REUSE_MILLIS;
+
+    /**
+     * Counters of the calls of a query, registered once per query
+     */
+    private record Meters(Counter executed, Counter coalesced, Counter reused) {
+        static Meters register(String query) {
+            return new Meters(register(query, "executed"), register(query, "coalesced"), register(query, "reused"));
+        }
+
+        private static Counter register(String query, String result) {
+            return Counter.builder(METER_NAME).description(METER_DESCRIPTION).tag(METER_QUERY_TAG, query).tag(METER_RESULT_TAG, result)
+                    .register(Metrics.globalRegistry);
+        }
+    }
+
+    private static class Flight {
+        private final CompletableFuture<Object> result = new CompletableFuture<>();
+        private volatile long completed;
+
+        boolean isExpired(long now, long reuseMillis) {
+            return result.isDone() && now - completed > reuseMillis;
+        }
+    }
+
+    public long getReuseMillis() {
+        return reuseMillis;
+    }
+
+    public void setReuseMillis(long reuseMillis) {
+        this.reuseMillis = reuseMillis;
+    }
+
+    /**
+     * @param query  Name of the query, used in metrics
+     * @param key    Parameters of the query, like the realm identifier
+     * @param loader Executes the query
+     * @return the result of the query, computed by this call or shared with a concurrent or recent one
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T execute(String query, String key, Supplier<T> loader) {
+        Meters queryMeters = meters.computeIfAbsent(query, Meters::register);
+        String flightKey = query + '\n' + key;
+        Flight flight = flights.get(flightKey);
+        if (flight != null && flight.isExpired(System.currentTimeMillis(), reuseMillis)) {
+            flights.remove(flightKey, flight);
+            flight = null;
+        }
+        if (flight == null) {
+            Flight created = new Flight();
+            flight = flights.putIfAbsent(flightKey, created);
+            if (flight == null) {
+                return fly(queryMeters, flightKey, created, loader);
+            }
+        }
+        (flight.result.isDone() ? queryMeters.reused() : queryMeters.coalesced()).increment();
+        try {
+            return (T) flight.result.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            throw e;
+        }
+    }
+
+    private <T> T fly(Meters queryMeters, String flightKey, Flight flight, Supplier<T> loader) {
+        queryMeters.executed().increment();
+        if (flights.size() > MAX_FLIGHTS) {
+            long now = System.currentTimeMillis();
+            flights.values().removeIf(f -> f.isExpired(now, reuseMillis));
+        }
+        T res;
+        try {
+            res = loader.get();
+        } catch (RuntimeException | Error e) {
+            flights.remove(flightKey, flight);
+            flight.result.completeExceptionally(e);
+            throw e;
+        }
+        flight.completed = System.currentTimeMillis();
+        flight.result.complete(res);
+        if (reuseMillis <= 0) {
+            flights.remove(flightKey, flight);
+        }
+        return res;
+    }
+}
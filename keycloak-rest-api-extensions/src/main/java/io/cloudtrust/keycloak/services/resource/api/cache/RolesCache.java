@@ -0,0 +1,125 @@
+package io.cloudtrust.keycloak.services.resource.api.cache;
+
+import jakarta.persistence.EntityManager;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.KeycloakSession;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-node cache of the roles graph of each realm: composite roles and roles mapped to groups. The graph of a realm is
+ * loaded with two queries and dropped when a role, a composite or a group role mapping of the realm changes on this
+ * node, or when it is older than the maximum age.
+ */
+public class RolesCache {
+    private static final long DEFAULT_MAX_AGE_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    private final Map<String, RoleGraph> realms = new ConcurrentHashMap<>();
+    private long maxAgeMillis = DEFAULT_MAX_AGE_MILLIS;
+
+    public long getMaxAgeMillis() {
+        return maxAgeMillis;
+    }
+
+    public void setMaxAgeMillis(long maxAgeMillis) {
+        this.maxAgeMillis = maxAgeMillis;
+    }
+
+    /**
+     * Roles graph of a realm. Composites granting a role are computed once per graph.
+     */
+    public static class RoleGraph {
+        // Role id -> ids of the composite roles directly including it
+        private final Map<String, Set<String>> composites = new HashMap<>();
+        // Role id -> ids of the groups the role is mapped to
+        private final Map<String, Set<String>> groups = new HashMap<>();
+        private final Map<String, Set<String>> granting = new ConcurrentHashMap<>();
+        private final long created = System.currentTimeMillis();
+
+        /**
+         * @param compositeRoles rows of (composite role id, included role id)
+         * @param groupRoles     rows of (role id, group id)
+         */
+        RoleGraph(Collection<Object[]> compositeRoles, Collection<Object[]> groupRoles) {
+            for (Object[] composite : compositeRoles) {
+                composites.computeIfAbsent((String) composite[1], k -> new HashSet<>()).add((String) composite[0]);
+            }
+            for (Object[] groupRole : groupRoles) {
+                groups.computeIfAbsent((String) groupRole[0], k -> new HashSet<>()).add((String) groupRole[1]);
+            }
+        }
+
+        /**
+         * @param roleId Role identifier
+         * @return the role and all the composite roles including it, at any depth
+         */
+        public Set<String> getGrantingRoles(String roleId) {
+            return granting.computeIfAbsent(roleId, id -> {
+                Set<String> res = new HashSet<>();
+                Deque<String> toVisit = new ArrayDeque<>();
+                toVisit.add(id);
+                while (!toVisit.isEmpty()) {
+                    String current = toVisit.poll();
+                    if (res.add(current)) {
+                        toVisit.addAll(composites.getOrDefault(current, Collections.emptySet()));
+                    }
+                }
+                return Collections.unmodifiableSet(res);
+            });
+        }
+
+        /**
+         * @param roleIds Role identifiers
+         * @return the roles and all the composite roles including them
+         */
+        public Set<String> getEffectiveRoles(Collection<String> roleIds) {
+            Set<String> res = new HashSet<>();
+            roleIds.forEach(roleId -> res.addAll(getGrantingRoles(roleId)));
+            return res;
+        }
+
+        /**
+         * @param roleIds Role identifiers, composites included
+         * @return the groups one of the roles is mapped to. Their subgroups are not included.
+         */
+        public Set<String> getGroups(Collection<String> roleIds) {
+            Set<String> res = new HashSet<>();
+            roleIds.forEach(roleId -> res.addAll(groups.getOrDefault(roleId, Collections.emptySet())));
+            return res;
+        }
+    }
+
+    /**
+     * @param session Keycloak session, used to load the graph when it is not cached
+     * @param realmId Realm identifier
+     * @return the roles graph of the realm
+     */
+    public RoleGraph get(KeycloakSession session, String realmId) {
+        RoleGraph graph = realms.get(realmId);
+        if (graph == null || System.currentTimeMillis() - graph.created > maxAgeMillis) {
+            EntityManager em = session.getProvider(JpaConnectionProvider.class).getEntityManager();
+            graph = new RoleGraph(
+                    em.createQuery("select r.id, c.id from RoleEntity r join r.compositeRoles c where r.realmId = :realmId or r.clientRealmConstraint = :realmId", Object[].class)
+                            .setParameter("realmId", realmId)
+                            .getResultList(),
+                    em.createQuery("select m.roleId, m.group.id from GroupRoleMappingEntity m where m.group.realm = :realmId", Object[].class)
+                            .setParameter("realmId", realmId)
+                            .getResultList());
+            realms.put(realmId, graph);
+        }
+        return graph;
+    }
+
+    public void invalidate(String realmId) {
+        realms.remove(realmId);
+    }
+}
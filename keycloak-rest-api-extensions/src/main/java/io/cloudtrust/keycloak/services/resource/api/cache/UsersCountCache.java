@@ -0,0 +1,102 @@
+package io.cloudtrust.keycloak.services.resource.api.cache;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Short-lived per-node cache of users counts, by realm and search filter.
+ * The counts of a realm are invalidated when a user of this realm is created, updated or deleted on this node. Changes
+ * made on other nodes are only visible once the cached counts are older than the maximum age.
+ */
+public class UsersCountCache {
+    private static final long DEFAULT_MAX_AGE_MILLIS = TimeUnit.SECONDS.toMillis(30);
+    private static final int MAX_ENTRIES_PER_REALM = 1000;
+    private static final String METER_NAME = "keycloak.api.users.count.cache";
+    private static final String METER_DESCRIPTION = "Users count cache lookups";
+    private static final String METER_RESULT_TAG = "result";
+
+    private final Map<String, Map<String, Entry>> realms = new ConcurrentHashMap<>();
+    private final Map<String, AtomicLong> generations = new ConcurrentHashMap<>();
+    private final Counter hits = Counter.builder(METER_NAME).description(METER_DESCRIPTION).tag(METER_RESULT_TAG, "hit")
+            .register(Metrics.globalRegistry);
+    private final Counter misses = Counter.builder(METER_NAME).description(METER_DESCRIPTION).tag(METER_RESULT_TAG, "miss")
+            .register(Metrics.globalRegistry);
+    private long maxAgeMillis = DEFAULT_MAX_AGE_MILLIS;
+
+    private record Entry(int count, long created) {
+    }
+
+    public long getMaxAgeMillis() {
+        return maxAgeMillis;
+    }
+
+    public void setMaxAgeMillis(long maxAgeMillis) {
+        this.maxAgeMillis = maxAgeMillis;
+    }
+
+    /**
+     * @param realmId   Realm identifier
+     * @param filterKey Normalized search filter
+     * @return the cached count or null if it is unknown or too old
+     */
+    public Integer get(String realmId, String filterKey) {
+        Map<String, Entry> entries = realms.get(realmId);
+        Entry entry = entries == null ? null : entries.get(filterKey);
+        if (entry != null && System.currentTimeMillis() - entry.created() > maxAgeMillis) {
+            entries.remove(filterKey, entry);
+            entry = null;
+        }
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return entry.count();
+    }
+
+    /**
+     * @param realmId Realm identifier
+     * @return the current generation of the realm counts, to be given to {@link #put(String, String, int, long)}
+     */
+    public long getGeneration(String realmId) {
+        return generations.computeIfAbsent(realmId, k -> new AtomicLong()).get();
+    }
+
+    /**
+     * Stores a count unless the realm has been invalidated since the count started
+     *
+     * @param realmId    Realm identifier
+     * @param filterKey  Normalized search filter
+     * @param count      Users count
+     * @param generation Generation of the realm counts read before counting
+     */
+    public void put(String realmId, String filterKey, int count, long generation) {
+        if (getGeneration(realmId) != generation) {
+            return;
+        }
+        Map<String, Entry> entries = realms.computeIfAbsent(realmId, k -> new ConcurrentHashMap<>());
+        if (entries.size() >= MAX_ENTRIES_PER_REALM) {
+            long limit = System.currentTimeMillis() - maxAgeMillis;
+            entries.values().removeIf(e -> e.created() < limit);
+            if (entries.size() >= MAX_ENTRIES_PER_REALM) {
+                entries.clear();
+            }
+        }
+        entries.put(filterKey, new Entry(count, System.currentTimeMillis()));
+    }
+
+    /**
+     * Forgets all the counts of a realm
+     *
+     * @param realmId Realm identifier
+     */
+    public void invalidate(String realmId) {
+        generations.computeIfAbsent(realmId, k -> new AtomicLong()).incrementAndGet();
+        realms.remove(realmId);
+    }
+}
@@ -0,0 +1,307 @@
+package io.cloudtrust.keycloak.services.resource.api.cache;
+
+import io.cloudtrust.keycloak.representations.idm.CredentialsStatisticsRepresentation;
+import io.cloudtrust.keycloak.representations.idm.UsersStatisticsRepresentation;
+import io.cloudtrust.keycloak.services.resource.JpaResultCaster;
+import io.quarkus.logging.Log;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.Query;
+import jakarta.persistence.TypedQuery;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.credential.PasswordCredentialModel;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-node users and credentials counters of each realm, read by the statistics endpoints without querying the database.
+ * <ul>
+ * <li>Users created on this node are added to the counters once their creation is committed</li>
+ * <li>Other changes of the users of this node mark the counters of the realm as dirty: they are recomputed by the next
+ * reconciliation</li>
+ * <li>Counters older than the maximum age are recomputed by the reconciliation too, so that changes made on other nodes
+ * are eventually taken into account</li>
+ * </ul>
+ * Counters of realms whose statistics are not read anymore are dropped.
+ */
+public class UsersStatisticsCache {
+    public static final long RECONCILIATION_INTERVAL_MILLIS = TimeUnit.SECONDS.toMillis(30);
+    private static final long DEFAULT_MAX_AGE_MILLIS = TimeUnit.MINUTES.toMillis(5);
+    private static final long MAX_IDLE_MILLIS = TimeUnit.HOURS.toMillis(1);
+    private static final Set<String> NOT_AUTHENTICATORS = Set.of(PasswordCredentialModel.TYPE, PasswordCredentialModel.PASSWORD_HISTORY);
+    private static final String QUERY_ACTIVE_USERS_COUNT =
+            "select u.REALM_ID, count(distinct u.ID) "
+                    + "from USER_ENTITY u "
+                    + "join CREDENTIAL c on u.ID=c.USER_ID and c.TYPE!=:credType1 and c.TYPE!=:credType2";
+
+    private final Map<String, Counters> realms = new ConcurrentHashMap<>();
+    private final Set<String> dirtyRealms = ConcurrentHashMap.newKeySet();
+    private long maxAgeMillis = DEFAULT_MAX_AGE_MILLIS;
+
+    public long getMaxAgeMillis() {
+        return maxAgeMillis;
+    }
+
+    public void setMaxAgeMillis(long maxAgeMillis) {
+        this.maxAgeMillis = maxAgeMillis;
+    }
+
+    /**
+     * Users and credentials counters of a realm
+     */
+    public static class Counters {
+        private final long computed;
+        private long total;
+        private long disabled;
+        private long active;
+        private final Map<String, Long> credentials;
+        private volatile long lastRead;
+
+        /**
+         * @param computed    Time the computation of the counters started
+         * @param total       Number of users
+         * @param disabled    Number of disabled users
+         * @param active      Number of users having a credential other than a password
+         * @param credentials Number of credentials by type
+         */
+        Counters(long computed, long total, long disabled, long active, Map<String, Long> credentials) {
+            this.computed = computed;
+            this.total = total;
+            this.disabled = disabled;
+            this.active = active;
+            this.credentials = new HashMap<>(credentials);
+            this.lastRead = computed;
+        }
+
+        /**
+         * @return new counters of a realm without users. Counters are incremented in place: they must not be shared
+         */
+        public static Counters empty() {
+            return new Counters(0, 0, 0, 0, Map.of());
+        }
+
+        synchronized void addUser(boolean enabled, Collection<String> credentialTypes) {
+            total++;
+            if (!enabled) {
+                disabled++;
+            }
+            if (credentialTypes.stream().anyMatch(type -> !NOT_AUTHENTICATORS.contains(type))) {
+                active++;
+            }
+            credentialTypes.forEach(type -> credentials.merge(type, 1L, Long::sum));
+        }
+
+        public synchronized UsersStatisticsRepresentation toUsersStatistics() {
+            return new UsersStatisticsRepresentation(total, disabled, total - active);
+        }
+
+        public synchronized CredentialsStatisticsRepresentation toCredentialsStatistics() {
+            CredentialsStatisticsRepresentation res = new CredentialsStatisticsRepresentation();
+            res.putAll(credentials);
+            return res;
+        }
+    }
+
+    /**
+     * @param session Keycloak session, used to compute the counters when they are not cached
+     * @param realmId Realm identifier
+     * @return the counters of the realm
+     */
+    public Counters get(KeycloakSession session, String realmId) {
+        Counters counters = getIfPresent(realmId);
+        if (counters == null) {
+            dirtyRealms.remove(realmId);
+            counters = load(session, realmId);
+            realms.put(realmId, counters);
+        }
+        return counters;
+    }
+
+    /**
+     * @param realmId Realm identifier
+     * @return the counters of the realm, null if they have not been computed yet
+     */
+    public Counters getIfPresent(String realmId) {
+        Counters counters = realms.get(realmId);
+        if (counters != null) {
+            counters.lastRead = System.currentTimeMillis();
+        }
+        return counters;
+    }
+
+    void put(String realmId, Counters counters) {
+        realms.put(realmId, counters);
+    }
+
+    /**
+     * Adds a user whose creation has been committed to the counters of its realm
+     *
+     * @param session    Keycloak session
+     * @param realmId    Realm identifier
+     * @param userId     Identifier of the created user
+     * @param changeTime Time of the creation, before it was committed
+     */
+    public void userCreated(KeycloakSession session, String realmId, String userId, long changeTime) {
+        if (!realms.containsKey(realmId)) {
+            return;
+        }
+        EntityManager em = session.getProvider(JpaConnectionProvider.class).getEntityManager();
+        List<Object[]> rows = em.createQuery("select u.enabled, c.type from UserEntity u left join u.credentials c where u.id = :userId", Object[].class)
+                .setParameter("userId", userId)
+                .getResultList();
+        if (rows.isEmpty()) {
+            // Not stored in the database, or already removed
+            markDirty(realmId);
+            return;
+        }
+        List<String> credentialTypes = rows.stream().map(row -> (String) row[1]).filter(Objects::nonNull).toList();
+        addUser(realmId, changeTime, Boolean.TRUE.equals(rows.get(0)[0]), credentialTypes);
+    }
+
+    void addUser(String realmId, long changeTime, boolean enabled, Collection<String> credentialTypes) {
+        Counters counters = realms.get(realmId);
+        if (counters == null) {
+            return;
+        }
+        if (counters.computed < changeTime) {
+            counters.addUser(enabled, credentialTypes);
+        } else {
+            // The counters may already include the user
+            markDirty(realmId);
+        }
+    }
+
+    /**
+     * The counters of the realm will be recomputed by the next reconciliation
+     *
+     * @param realmId Realm identifier
+     */
+    public void markDirty(String realmId) {
+        if (realms.containsKey(realmId)) {
+            dirtyRealms.add(realmId);
+        }
+    }
+
+    /**
+     * Recomputes the dirty and the too old counters, drops the counters which are not read anymore
+     *
+     * @param session Keycloak session
+     */
+    public void reconcile(KeycloakSession session) {
+        Set<String> realmIds = getRealmsToReconcile(System.currentTimeMillis());
+        if (realmIds.isEmpty()) {
+            return;
+        }
+        try {
+            realms.putAll(loadRealms(session, realmIds));
+        } catch (RuntimeException e) {
+            Log.warnf(e, "Failed to compute the users statistics of realms %s", realmIds);
+            realmIds.forEach(this::markDirty);
+        }
+    }
+
+    /**
+     * @return the realms whose counters must be recomputed. Idle counters are dropped.
+     */
+    Set<String> getRealmsToReconcile(long now) {
+        realms.entrySet().removeIf(e -> now - e.getValue().lastRead > MAX_IDLE_MILLIS);
+        Set<String> res = new HashSet<>();
+        realms.forEach((realmId, counters) -> {
+            if (now - counters.computed > maxAgeMillis) {
+                res.add(realmId);
+            }
+        });
+        for (String realmId : dirtyRealms) {
+            dirtyRealms.remove(realmId);
+            if (realms.containsKey(realmId)) {
+                res.add(realmId);
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Forgets the counters of a realm
+     *
+     * @param realmId Realm identifier
+     */
+    public void invalidate(String realmId) {
+        realms.remove(realmId);
+        dirtyRealms.remove(realmId);
+    }
+
+    private static Counters load(KeycloakSession session, String realmId) {
+        return loadRealms(session, List.of(realmId)).get(realmId);
+    }
+
+    /**
+     * Computes the counters of several realms with one grouped query per figure
+     *
+     * @param session  Keycloak session
+     * @param realmIds Realm identifiers, null for all the realms
+     * @return the counters by realm identifier, including the realms without users
+     */
+    public static Map<String, Counters> loadRealms(KeycloakSession session, Collection<String> realmIds) {
+        if (realmIds != null && realmIds.isEmpty()) {
+            // An empty IN list is not valid SQL on every database
+            return new HashMap<>();
+        }
+        long computed = System.currentTimeMillis();
+        EntityManager em = session.getProvider(JpaConnectionProvider.class).getEntityManager();
+        String where = realmIds == null ? "" : " where u.realmId in :realmIds";
+
+        Map<String, long[]> users = new HashMap<>();
+        TypedQuery<Object[]> usersQuery = em.createQuery("select u.realmId, u.enabled, count(*) from UserEntity u" + where
+                + " group by u.realmId, u.enabled", Object[].class);
+        for (Object[] row : bindRealms(usersQuery, realmIds).getResultList()) {
+            long[] figures = users.computeIfAbsent((String) row[0], k -> new long[3]);
+            long count = JpaResultCaster.toLong(row[2]);
+            figures[0] += count;
+            if (!Boolean.TRUE.equals(row[1])) {
+                figures[1] += count;
+            }
+        }
+
+        Query activeQuery = em.createNativeQuery(QUERY_ACTIVE_USERS_COUNT + (realmIds == null ? "" : " where u.REALM_ID in (:realmIds)")
+                        + " group by u.REALM_ID")
+                .setParameter("credType1", PasswordCredentialModel.TYPE)
+                .setParameter("credType2", PasswordCredentialModel.PASSWORD_HISTORY);
+        for (Object row : bindRealms(activeQuery, realmIds).getResultList()) {
+            Object[] columns = (Object[]) row;
+            users.computeIfAbsent(JpaResultCaster.toString(columns[0]), k -> new long[3])[2] = JpaResultCaster.toLong(columns[1]);
+        }
+
+        Map<String, Map<String, Long>> credentials = new HashMap<>();
+        TypedQuery<Object[]> credentialsQuery = em.createQuery("select u.realmId, c.type, count(*) from UserEntity u join u.credentials c" + where
+                + " group by u.realmId, c.type", Object[].class);
+        bindRealms(credentialsQuery, realmIds).getResultList()
+                .forEach(row -> credentials.computeIfAbsent((String) row[0], k -> new HashMap<>())
+                        .put(JpaResultCaster.toString(row[1]), JpaResultCaster.toLong(row[2])));
+
+        Map<String, Counters> res = new HashMap<>();
+        Set<String> ids = new HashSet<>(users.keySet());
+        if (realmIds != null) {
+            ids.addAll(realmIds);
+        }
+        for (String id : ids) {
+            long[] figures = users.getOrDefault(id, new long[3]);
+            res.put(id, new Counters(computed, figures[0], figures[1], figures[2], credentials.getOrDefault(id, Map.of())));
+        }
+        return res;
+    }
+
+    private static <Q extends Query> Q bindRealms(Q query, Collection<String> realmIds) {
+        if (realmIds != null) {
+            query.setParameter("realmIds", realmIds);
+        }
+        return query;
+    }
+}
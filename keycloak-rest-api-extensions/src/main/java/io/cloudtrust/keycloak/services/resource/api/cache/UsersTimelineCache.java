@@ -0,0 +1,77 @@
+package io.cloudtrust.keycloak.services.resource.api.cache;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+
+/**
+ * Per-node cache of the closed buckets of the users creation timeline of each realm: buckets which ended before the
+ * timeline was computed do not get new users and are kept as is. For each realm and interval, a single contiguous range
+ * of buckets is kept: a later request only computes the buckets closed since then. Users removed since a bucket was
+ * computed are taken into account once the range is older than the maximum age.
+ */
+public class UsersTimelineCache {
+    private static final long DEFAULT_MAX_AGE_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+    private final Map<String, Range> ranges = new ConcurrentHashMap<>();
+    private long maxAgeMillis = DEFAULT_MAX_AGE_MILLIS;
+
+    /**
+     * Counts of the buckets in [from, to), by bucket start. Empty buckets are absent.
+     */
+    private record Range(long from, long to, NavigableMap<Long, Long> counts, long created) {
+        boolean covers(long start) {
+            return from <= start && start < to;
+        }
+    }
+
+    public long getMaxAgeMillis() {
+        return maxAgeMillis;
+    }
+
+    public void setMaxAgeMillis(long maxAgeMillis) {
+        this.maxAgeMillis = maxAgeMillis;
+    }
+
+    /**
+     * @param realmId  Realm identifier
+     * @param interval Width of the buckets
+     * @param from     Start of the first bucket
+     * @param to       End of the last bucket, which must be closed
+     * @param loader   Counts the users created in a range of buckets, by bucket start
+     * @return the users created by bucket start, empty buckets being absent
+     */
+    public NavigableMap<Long, Long> getClosedBuckets(String realmId, String interval, long from, long to,
+                                                      BiFunction<Long, Long, NavigableMap<Long, Long>> loader) {
+        String key = realmId + '/' + interval;
+        Range range = ranges.get(key);
+        if (range != null && System.currentTimeMillis() - range.created() > maxAgeMillis) {
+            ranges.remove(key, range);
+            range = null;
+        }
+        if (range == null || !range.covers(from)) {
+            range = new Range(from, to, Collections.unmodifiableNavigableMap(loader.apply(from, to)), System.currentTimeMillis());
+            ranges.put(key, range);
+        } else if (range.to() < to) {
+            // Only the buckets closed since the range was computed
+            NavigableMap<Long, Long> counts = new TreeMap<>(range.counts());
+            counts.putAll(loader.apply(range.to(), to));
+            range = new Range(range.from(), to, Collections.unmodifiableNavigableMap(counts), range.created());
+            ranges.put(key, range);
+        }
+        return range.counts().subMap(from, true, to, false);
+    }
+
+    /**
+     * Forgets the timelines of a realm
+     *
+     * @param realmId Realm identifier
+     */
+    public void invalidate(String realmId) {
+        ranges.keySet().removeIf(key -> key.startsWith(realmId + '/'));
+    }
+}
@@ -0,0 +1,363 @@
+package io.cloudtrust.keycloak.services.resource.api.index;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiPredicate;
+import java.util.regex.Pattern;
+
+/**
+ * In-memory inverted index of the users of a realm: username, email, first and last name are normalized like the users
+ * search query does (first and last name in lower case) and split into trigrams. Users are interned as positions so
+ * that the users of a trigram are a sorted array of positions. A search token is resolved by intersecting the users of
+ * its trigrams, then checking the candidates against the indexed fields.
+ */
+public class UsersSearchIndex {
+    private static final int GRAM = 3;
+    private static final int SNAPSHOT_VERSION = 2;
+    private static final int[] NONE = new int[0];
+    private static final Pattern SPACES = Pattern.compile("\\s+");
+
+    private final List<String> ids = new ArrayList<>();
+    private final List<String[]> values = new ArrayList<>();
+    private final Map<String, Integer> positions = new HashMap<>();
+    private final Deque<Integer> freePositions = new ArrayDeque<>();
+    private final Map<String, Postings> postings = new HashMap<>();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private volatile boolean complete = true;
+
+    private enum Mode {
+        EXACT(String::equals),
+        PREFIX(String::startsWith),
+        INFIX(String::contains);
+
+        private final BiPredicate<String, String> matcher;
+
+        Mode(BiPredicate<String, String> matcher) {
+            this.matcher = matcher;
+        }
+    }
+
+    /**
+     * Sorted positions of the users having a trigram
+     */
+    private static class Postings {
+        private int[] positions = new int[4];
+        private int size;
+
+        private void add(int position) {
+            int i = Arrays.binarySearch(positions, 0, size, position);
+            if (i >= 0) {
+                return;
+            }
+            i = -i - 1;
+            if (size == positions.length) {
+                positions = Arrays.copyOf(positions, size + (size >> 1) + 1);
+            }
+            System.arraycopy(positions, i, positions, i + 1, size - i);
+            positions[i] = position;
+            size++;
+        }
+
+        /**
+         * @return whether no user has the trigram anymore
+         */
+        private boolean remove(int position) {
+            int i = Arrays.binarySearch(positions, 0, size, position);
+            if (i >= 0) {
+                System.arraycopy(positions, i + 1, positions, i, size - i - 1);
+                size--;
+            }
+            return size == 0;
+        }
+    }
+
+    /**
+     * @param value Value of a search token
+     * @return the value in lower case, like the search tokens of the users search query
+     */
+    public static String normalize(String value) {
+        return value.toLowerCase();
+    }
+
+    /**
+     * @return the indexed values of the user: username and email as stored (in lower case), first and last name in
+     * lower case, null values being empty
+     */
+    public static String[] fields(String username, String email, String firstName, String lastName) {
+        return new String[]{nullToEmpty(username), nullToEmpty(email), nullToEmpty(firstName).toLowerCase(Locale.ROOT),
+                nullToEmpty(lastName).toLowerCase(Locale.ROOT)};
+    }
+
+    private static String nullToEmpty(String value) {
+        return value == null ? "" : value;
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return positions.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public boolean contains(String userId) {
+        lock.readLock().lock();
+        try {
+            return positions.containsKey(userId);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return whether the index is known to hold all the users of the realm
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    public void setComplete(boolean complete) {
+        this.complete = complete;
+    }
+
+    /**
+     * @return a copy of the indexed users and their indexed fields
+     */
+    public Map<String, String[]> getUsers() {
+        lock.readLock().lock();
+        try {
+            Map<String, String[]> res = new HashMap<>();
+            positions.forEach((id, position) -> res.put(id, values.get(position)));
+            return res;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public void put(String userId, String username, String email, String firstName, String lastName) {
+        add(userId, fields(username, email, firstName, lastName));
+    }
+
+    private void add(String userId, String[] fields) {
+        lock.writeLock().lock();
+        try {
+            unindex(userId);
+            int position;
+            if (freePositions.isEmpty()) {
+                position = ids.size();
+                ids.add(userId);
+                values.add(fields);
+            } else {
+                position = freePositions.pop();
+                ids.set(position, userId);
+                values.set(position, fields);
+            }
+            positions.put(userId, position);
+            for (String gram : grams(fields)) {
+                postings.computeIfAbsent(gram, k -> new Postings()).add(position);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void remove(String userId) {
+        lock.writeLock().lock();
+        try {
+            unindex(userId);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void unindex(String userId) {
+        Integer position = positions.remove(userId);
+        if (position != null) {
+            for (String gram : grams(values.get(position))) {
+                Postings users = postings.get(gram);
+                if (users != null && users.remove(position)) {
+                    postings.remove(gram);
+                }
+            }
+            ids.set(position, null);
+            values.set(position, null);
+            freePositions.push(position);
+        }
+    }
+
+    /**
+     * Resolves a search with the same syntax as the users search: tokens separated by spaces, all of them must match
+     * one of the fields. A token is a prefix (foo or foo*), an infix (*foo*) or an exact value ("foo").
+     *
+     * @param search   Search string
+     * @param maxUsers Maximum number of matching users
+     * @return the ids of the matching users, or null if the search can't be resolved by the index (token shorter than
+     * a trigram, SQL wildcards) or matches more than maxUsers users
+     */
+    public Set<String> search(String search, int maxUsers) {
+        List<String> terms = new ArrayList<>();
+        List<Mode> modes = new ArrayList<>();
+        for (String token : SPACES.split(search.trim())) {
+            String term = normalize(token);
+            Mode mode;
+            if (term.length() >= 2 && term.startsWith("\"") && term.endsWith("\"")) {
+                mode = Mode.EXACT;
+                term = term.substring(1, term.length() - 1);
+            } else if (term.length() >= 2 && term.startsWith("*") && term.endsWith("*")) {
+                mode = Mode.INFIX;
+                term = term.substring(1, term.length() - 1);
+            } else {
+                mode = Mode.PREFIX;
+                term = term.endsWith("*") ? term.substring(0, term.length() - 1) : term;
+            }
+            if (term.length() < GRAM || term.indexOf('%') >= 0 || term.indexOf('_') >= 0) {
+                return null;
+            }
+            terms.add(term);
+            modes.add(mode);
+        }
+
+        lock.readLock().lock();
+        try {
+            int[] res = null;
+            for (int i = 0; i < terms.size(); i++) {
+                res = match(terms.get(i), modes.get(i), res);
+                if (res.length == 0) {
+                    return Set.of();
+                }
+            }
+            if (res == null || res.length > maxUsers) {
+                return null;
+            }
+            Set<String> userIds = new HashSet<>();
+            for (int position : res) {
+                userIds.add(ids.get(position));
+            }
+            return userIds;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the sorted positions of the users matching the term, among the restriction if any
+     */
+    private int[] match(String term, Mode mode, int[] restriction) {
+        // Intersect the smallest posting lists first
+        List<Postings> lists = new ArrayList<>();
+        for (String gram : grams(term)) {
+            Postings users = postings.get(gram);
+            if (users == null) {
+                return NONE;
+            }
+            lists.add(users);
+        }
+        lists.sort((a, b) -> Integer.compare(a.size, b.size));
+
+        int[] candidates = restriction != null ? restriction : Arrays.copyOf(lists.get(0).positions, lists.get(0).size);
+        for (Postings users : restriction != null ? lists : lists.subList(1, lists.size())) {
+            candidates = intersect(candidates, users);
+            if (candidates.length == 0) {
+                return NONE;
+            }
+        }
+
+        int[] res = new int[candidates.length];
+        int size = 0;
+        for (int position : candidates) {
+            if (matches(values.get(position), term, mode)) {
+                res[size++] = position;
+            }
+        }
+        return Arrays.copyOf(res, size);
+    }
+
+    private static int[] intersect(int[] sorted, Postings users) {
+        int[] res = new int[Math.min(sorted.length, users.size)];
+        int size = 0;
+        int i = 0;
+        int j = 0;
+        while (i < sorted.length && j < users.size) {
+            if (sorted[i] < users.positions[j]) {
+                i++;
+            } else if (sorted[i] > users.positions[j]) {
+                j++;
+            } else {
+                res[size++] = sorted[i];
+                i++;
+                j++;
+            }
+        }
+        return size == res.length ? res : Arrays.copyOf(res, size);
+    }
+
+    private static boolean matches(String[] fields, String term, Mode mode) {
+        for (String field : fields) {
+            if (mode.matcher.test(field, term)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Set<String> grams(String... values) {
+        Set<String> res = new HashSet<>();
+        for (String value : values) {
+            for (int i = 0; i + GRAM <= value.length(); i++) {
+                res.add(value.substring(i, i + GRAM));
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Writes the indexed users. Trigrams are not written: they are computed again when the snapshot is read
+     */
+    public void write(DataOutputStream out) throws IOException {
+        lock.readLock().lock();
+        try {
+            out.writeInt(SNAPSHOT_VERSION);
+            out.writeInt(positions.size());
+            for (Map.Entry<String, Integer> user : positions.entrySet()) {
+                out.writeUTF(user.getKey());
+                for (String field : values.get(user.getValue())) {
+                    out.writeUTF(field);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the index of a snapshot written by {@link #write(DataOutputStream)}. It is not known to be complete: the
+     * users may have changed since it was written
+     */
+    public static UsersSearchIndex read(DataInputStream in) throws IOException {
+        if (in.readInt() != SNAPSHOT_VERSION) {
+            throw new IOException("Unsupported users search index version");
+        }
+        UsersSearchIndex index = new UsersSearchIndex();
+        int size = in.readInt();
+        for (int i = 0; i < size; i++) {
+            // Fields are written as indexed
+            index.add(in.readUTF(), new String[]{in.readUTF(), in.readUTF(), in.readUTF(), in.readUTF()});
+        }
+        index.setComplete(false);
+        return index;
+    }
+}
@@ -0,0 +1,35 @@
+package io.cloudtrust.keycloak.services.resource.api.index;
+
+import org.keycloak.cluster.ClusterEvent;
+import org.keycloak.cluster.ClusterListener;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.cache.infinispan.events.InvalidationEvent;
+import org.keycloak.models.cache.infinispan.events.UserCacheRealmInvalidationEvent;
+import org.keycloak.models.cache.infinispan.events.UserFullInvalidationEvent;
+import org.keycloak.models.cache.infinispan.events.UserUpdatedEvent;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+/**
+ * Keeps the users search indexes of the node up to date with the changes made on the other nodes of the cluster. The
+ * user cache invalidations they send once their changes are committed tell which users have been created, updated or
+ * removed; an invalidation of all the users of a realm marks its index incomplete.
+ */
+public class UsersSearchIndexClusterListener implements ClusterListener {
+    private final KeycloakSessionFactory sessionFactory;
+    private final UsersSearchIndexes indexes;
+
+    public UsersSearchIndexClusterListener(KeycloakSessionFactory sessionFactory, UsersSearchIndexes indexes) {
+        this.sessionFactory = sessionFactory;
+        this.indexes = indexes;
+    }
+
+    @Override
+    public void eventReceived(ClusterEvent event) {
+        if (event instanceof UserUpdatedEvent || event instanceof UserFullInvalidationEvent) {
+            String userId = ((InvalidationEvent) event).getId();
+            KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> indexes.reindex(session, userId));
+        } else if (event instanceof UserCacheRealmInvalidationEvent realmInvalidation) {
+            indexes.markIncomplete(realmInvalidation.getId());
+        }
+    }
+}
@@ -0,0 +1,345 @@
+package io.cloudtrust.keycloak.services.resource.api.index;
+
+import io.cloudtrust.keycloak.representations.idm.UsersSearchIndexRepresentation;
+import jakarta.persistence.EntityManager;
+import org.hibernate.jpa.HibernateHints;
+import org.jboss.logging.Logger;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.storage.UserStorageProvider;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Users search indexes of the node, by realm. An index only exists once it has been built for a realm (or loaded from
+ * the local directory); until then, the searches of the realm are done by the database only.
+ * Indexes are updated from the events of the node and from the user cache invalidations sent by the other nodes (see
+ * {@link UsersSearchIndexClusterListener}). An index is only used by the searches while it is known to be complete:
+ * it is marked incomplete when users may have changed without an event telling which ones, until it is rebuilt.
+ * Realms with more users than the maximum number of indexed users are not indexed.
+ */
+public class UsersSearchIndexes {
+    private static final Logger logger = Logger.getLogger(UsersSearchIndexes.class);
+    private static final int FETCH_SIZE = 1000;
+    private static final int MAX_REPORTED_USERS = 100;
+    private static final String SNAPSHOT_EXTENSION = ".users-index.gz";
+
+    private final Map<String, UsersSearchIndex> indexes = new ConcurrentHashMap<>();
+    private final Set<String> loadedRealms = ConcurrentHashMap.newKeySet();
+    private boolean enabled;
+    private Path directory;
+    private int maxUsers = 500;
+    private int maxIndexedUsers = 500000;
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    public void setDirectory(Path directory) {
+        this.directory = directory;
+    }
+
+    public int getMaxUsers() {
+        return maxUsers;
+    }
+
+    /**
+     * @param maxUsers Maximum number of users a search can be resolved to. Larger results are left to the database
+     */
+    public void setMaxUsers(int maxUsers) {
+        this.maxUsers = maxUsers;
+    }
+
+    public int getMaxIndexedUsers() {
+        return maxIndexedUsers;
+    }
+
+    /**
+     * @param maxIndexedUsers Maximum number of users of an index: it bounds the memory used by the index of a realm
+     */
+    public void setMaxIndexedUsers(int maxIndexedUsers) {
+        this.maxIndexedUsers = maxIndexedUsers;
+    }
+
+    /**
+     * @param session Keycloak session, used to check a snapshot when it is loaded
+     * @param realmId Realm identifier
+     * @return the index of the realm, if it has been built
+     */
+    public Optional<UsersSearchIndex> get(KeycloakSession session, String realmId) {
+        if (!enabled) {
+            return Optional.empty();
+        }
+        UsersSearchIndex index = indexes.get(realmId);
+        if (index == null && directory != null && loadedRealms.add(realmId)) {
+            index = load(session, realmId);
+            if (index != null) {
+                index = Optional.ofNullable(indexes.putIfAbsent(realmId, index)).orElse(index);
+            }
+        }
+        return Optional.ofNullable(index);
+    }
+
+    /**
+     * Resolves a search to the ids of the matching users. The index is only trusted when the realm has no user storage
+     * provider (their users are imported and synchronized without events) and when it is known to be complete.
+     *
+     * @return the ids of the users, or null if the search must be done by the database
+     */
+    public Collection<String> search(KeycloakSession session, RealmModel realm, String search) {
+        UsersSearchIndex index = get(session, realm.getId()).orElse(null);
+        if (index == null || !index.isComplete() || hasUserStorageProviders(realm)) {
+            return null;
+        }
+        return index.search(search, maxUsers);
+    }
+
+    private static boolean hasUserStorageProviders(RealmModel realm) {
+        return realm.getComponentsStream(realm.getId(), UserStorageProvider.class.getName()).findAny().isPresent();
+    }
+
+    /**
+     * Stops using the index of a realm for the searches until it is rebuilt: its users may have changed without an
+     * event telling which ones
+     */
+    public void markIncomplete(String realmId) {
+        UsersSearchIndex index = indexes.get(realmId);
+        if (index != null && index.isComplete()) {
+            logger.infof("The users search index of realm %s is incomplete, searches are done by the database until it is rebuilt", realmId);
+            index.setComplete(false);
+        }
+    }
+
+    /**
+     * Builds the index of a realm from the database and replaces the current one
+     *
+     * @return false if the realm has more users than the maximum number of indexed users: the index is then not built
+     */
+    public boolean rebuild(KeycloakSession session, RealmModel realm) {
+        UsersSearchIndex index = new UsersSearchIndex();
+        try (Stream<Object[]> rows = streamUsers(session, realm)) {
+            Iterator<Object[]> it = rows.iterator();
+            while (it.hasNext()) {
+                if (index.size() == maxIndexedUsers) {
+                    logger.warnf("Realm %s has more than %d users, its users search index is not built", realm.getName(), maxIndexedUsers);
+                    removeRealm(realm.getId());
+                    return false;
+                }
+                Object[] row = it.next();
+                index.put((String) row[0], (String) row[1], (String) row[2], (String) row[3], (String) row[4]);
+            }
+        }
+        indexes.put(realm.getId(), index);
+        save(realm.getId(), index);
+        return true;
+    }
+
+    /**
+     * Compares the index of a realm with the database
+     */
+    public UsersSearchIndexRepresentation check(KeycloakSession session, RealmModel realm) {
+        UsersSearchIndexRepresentation res = new UsersSearchIndexRepresentation();
+        Optional<UsersSearchIndex> index = get(session, realm.getId());
+        res.setEnabled(enabled);
+        res.setBuilt(index.isPresent());
+        if (index.isEmpty()) {
+            return res;
+        }
+        res.setComplete(index.get().isComplete());
+
+        Map<String, String[]> indexed = index.get().getUsers();
+        List<String> inconsistent = new ArrayList<>();
+        long[] counts = new long[3];
+        try (Stream<Object[]> rows = streamUsers(session, realm)) {
+            rows.forEach(row -> {
+                counts[0]++;
+                String[] fields = indexed.remove((String) row[0]);
+                if (fields == null) {
+                    counts[1]++;
+                    report(inconsistent, (String) row[0]);
+                } else if (!Arrays.equals(fields, UsersSearchIndex.fields((String) row[1], (String) row[2], (String) row[3], (String) row[4]))) {
+                    counts[2]++;
+                    report(inconsistent, (String) row[0]);
+                }
+            });
+        }
+        indexed.keySet().forEach(id -> report(inconsistent, id));
+
+        res.setIndexedUsers(index.get().size());
+        res.setDatabaseUsers(counts[0]);
+        res.setMissingUsers(counts[1]);
+        res.setOutdatedUsers(counts[2]);
+        res.setRemovedUsers(indexed.size());
+        res.setInconsistentUserIds(inconsistent);
+        return res;
+    }
+
+    private static void report(List<String> ids, String id) {
+        if (ids.size() < MAX_REPORTED_USERS) {
+            ids.add(id);
+        }
+    }
+
+    /**
+     * Indexes the current state of a user, or removes it if it does not exist anymore
+     */
+    public void reindex(KeycloakSession session, String realmId, String userId) {
+        UsersSearchIndex index = get(session, realmId).orElse(null);
+        if (index == null) {
+            return;
+        }
+        EntityManager em = session.getProvider(JpaConnectionProvider.class).getEntityManager();
+        List<Object[]> rows = em.createQuery("select u.id, u.username, u.email, u.firstName, u.lastName from UserEntity u where u.id = :id and u.realmId = :realmId", Object[].class)
+                .setParameter("id", userId)
+                .setParameter("realmId", realmId)
+                .getResultList();
+        if (rows.isEmpty()) {
+            index.remove(userId);
+        } else {
+            put(realmId, index, rows.get(0));
+        }
+    }
+
+    /**
+     * Indexes the current state of a user whose realm is not known, or removes it from the indexes if it does not
+     * exist anymore
+     */
+    public void reindex(KeycloakSession session, String userId) {
+        if (!enabled || indexes.isEmpty()) {
+            return;
+        }
+        EntityManager em = session.getProvider(JpaConnectionProvider.class).getEntityManager();
+        List<Object[]> rows = em.createQuery("select u.realmId, u.username, u.email, u.firstName, u.lastName from UserEntity u where u.id = :id", Object[].class)
+                .setParameter("id", userId)
+                .getResultList();
+        if (rows.isEmpty()) {
+            indexes.values().forEach(index -> index.remove(userId));
+        } else {
+            String realmId = (String) rows.get(0)[0];
+            UsersSearchIndex index = indexes.get(realmId);
+            if (index != null) {
+                rows.get(0)[0] = userId;
+                put(realmId, index, rows.get(0));
+            }
+        }
+    }
+
+    private void put(String realmId, UsersSearchIndex index, Object[] row) {
+        String userId = (String) row[0];
+        if (index.size() >= maxIndexedUsers && !index.contains(userId)) {
+            logger.warnf("Realm %s has more than %d users, its users search index is dropped", realmId, maxIndexedUsers);
+            removeRealm(realmId);
+            return;
+        }
+        index.put(userId, (String) row[1], (String) row[2], (String) row[3], (String) row[4]);
+    }
+
+    public void removeUser(String realmId, String userId) {
+        UsersSearchIndex index = indexes.get(realmId);
+        if (index != null) {
+            index.remove(userId);
+        }
+    }
+
+    public void removeRealm(String realmId) {
+        indexes.remove(realmId);
+        loadedRealms.remove(realmId);
+        if (directory != null) {
+            try {
+                Files.deleteIfExists(snapshot(realmId));
+            } catch (IOException e) {
+                logger.warnf(e, "Can't delete the users search index of realm %s", realmId);
+            }
+        }
+    }
+
+    /**
+     * Writes the indexes to the local directory, if any
+     */
+    public void saveAll() {
+        indexes.forEach(this::save);
+    }
+
+    private Stream<Object[]> streamUsers(KeycloakSession session, RealmModel realm) {
+        EntityManager em = session.getProvider(JpaConnectionProvider.class).getEntityManager();
+        return em.createQuery("select u.id, u.username, u.email, u.firstName, u.lastName from UserEntity u where u.realmId = :realmId", Object[].class)
+                .setParameter("realmId", realm.getId())
+                .setHint(HibernateHints.HINT_FETCH_SIZE, FETCH_SIZE)
+                .getResultStream();
+    }
+
+    private Path snapshot(String realmId) {
+        return directory.resolve(realmId + SNAPSHOT_EXTENSION);
+    }
+
+    /**
+     * Reads the snapshot of a realm. As the users may have changed since it was written, it is only used by the searches
+     * when it holds as many users as the database
+     */
+    private UsersSearchIndex load(KeycloakSession session, String realmId) {
+        if (directory == null || !Files.isRegularFile(snapshot(realmId))) {
+            return null;
+        }
+        UsersSearchIndex index;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(Files.newInputStream(snapshot(realmId)))))) {
+            index = UsersSearchIndex.read(in);
+        } catch (IOException e) {
+            logger.warnf(e, "Can't read the users search index of realm %s, it has to be rebuilt", realmId);
+            return null;
+        }
+        EntityManager em = session.getProvider(JpaConnectionProvider.class).getEntityManager();
+        long databaseUsers = em.createQuery("select count(u) from UserEntity u where u.realmId = :realmId", Long.class)
+                .setParameter("realmId", realmId)
+                .getSingleResult();
+        if (databaseUsers == index.size()) {
+            index.setComplete(true);
+        } else {
+            logger.infof("The users search index of realm %s has %d users instead of %d, it has to be rebuilt", realmId, index.size(), databaseUsers);
+        }
+        return index;
+    }
+
+    private void save(String realmId, UsersSearchIndex index) {
+        if (directory == null) {
+            return;
+        }
+        try {
+            Files.createDirectories(directory);
+            Path tmp = Files.createTempFile(directory, realmId, ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(Files.newOutputStream(tmp))))) {
+                index.write(out);
+            }
+            Files.move(tmp, snapshot(realmId), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.warnf(e, "Can't write the users search index of realm %s", realmId);
+        }
+    }
+}
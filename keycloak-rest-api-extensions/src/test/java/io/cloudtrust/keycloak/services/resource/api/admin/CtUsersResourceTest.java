@@ -0,0 +1,26 @@
+package io.cloudtrust.keycloak.services.resource.api.admin;
+
+import jakarta.ws.rs.BadRequestException;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+
+class CtUsersResourceTest {
+    @Test
+    void toTimestamp() {
+        assertThat(CtUsersResource.toTimestamp("createdAfter", null), is(nullValue()));
+        assertThat(CtUsersResource.toTimestamp("createdAfter", " "), is(nullValue()));
+        assertThat(CtUsersResource.toTimestamp("createdAfter", "1700000000000"), is("1700000000000"));
+        assertThat(CtUsersResource.toTimestamp("createdAfter", "2024-01-31"), is("1706659200000"));
+        assertThat(CtUsersResource.toTimestamp("createdAfter", "2024-01-31T01:00:00+01:00"), is("1706659200000"));
+    }
+
+    @Test
+    void toTimestampRejectsInvalidDates() {
+        Assertions.assertThrows(BadRequestException.class, () -> CtUsersResource.toTimestamp("createdAfter", "2024-13-01"));
+        Assertions.assertThrows(BadRequestException.class, () -> CtUsersResource.toTimestamp("createdAfter", "yesterday"));
+    }
+}
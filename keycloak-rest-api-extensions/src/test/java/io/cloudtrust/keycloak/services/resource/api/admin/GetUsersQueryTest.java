@@ -0,0 +1,23 @@
+package io.cloudtrust.keycloak.services.resource.api.admin;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Set;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+
+class GetUsersQueryTest {
+    @Test
+    void paddedKeepsPowersOfTwo() {
+        assertThat(GetUsersQuery.padded(Set.of("a")), contains("a"));
+        assertThat(GetUsersQuery.padded(Set.of("b", "a")), contains("a", "b"));
+        assertThat(GetUsersQuery.padded(Set.of("d", "c", "b", "a")), contains("a", "b", "c", "d"));
+    }
+
+    @Test
+    void paddedRepeatsLastValue() {
+        assertThat(GetUsersQuery.padded(Set.of("c", "b", "a")), contains("a", "b", "c", "c"));
+        assertThat(GetUsersQuery.padded(Set.of("e", "d", "c", "b", "a")), contains("a", "b", "c", "d", "e", "e", "e", "e"));
+    }
+}
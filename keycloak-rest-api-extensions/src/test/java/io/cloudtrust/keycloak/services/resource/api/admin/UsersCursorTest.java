@@ -0,0 +1,56 @@
+package io.cloudtrust.keycloak.services.resource.api.admin;
+
+import jakarta.ws.rs.BadRequestException;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+class UsersCursorTest {
+    @Test
+    void encodeDecodeWorks() {
+        UsersCursor cursor = new UsersCursor(UsersSortOrder.EMAIL, "john:doe@localhost", "f:ldap:1234");
+        UsersCursor decoded = UsersCursor.decode(cursor.encode(), UsersSortOrder.EMAIL);
+
+        assertThat(decoded.getSort(), is(UsersSortOrder.EMAIL));
+        assertThat(decoded.getKey(), is("john:doe@localhost"));
+        assertThat(decoded.getId(), is("f:ldap:1234"));
+    }
+
+    @Test
+    void emptyKeyIsSupported() {
+        UsersCursor cursor = new UsersCursor(UsersSortOrder.EMAIL, "", "abcd");
+        assertThat(UsersCursor.decode(cursor.encode(), UsersSortOrder.EMAIL).getKey(), is(""));
+    }
+
+    @Test
+    void ofUsesTheSortField() {
+        assertThat(UsersCursor.of(UsersSortOrder.USERNAME, "abcd", "john", "john@localhost", 42L).getKey(), is("john"));
+        assertThat(UsersCursor.of(UsersSortOrder.EMAIL, "abcd", "john", null, 42L).getKey(), is(""));
+        assertThat(UsersCursor.of(UsersSortOrder.CREATED_TIMESTAMP, "abcd", "john", null, 42L).getKeyAsLong(), is(42L));
+        assertThat(UsersCursor.of(UsersSortOrder.CREATED_TIMESTAMP, "abcd", "john", null, null).getKeyAsLong(), is(0L));
+    }
+
+    @Test
+    void decodeRejectsOtherSortOrder() {
+        String encoded = new UsersCursor(UsersSortOrder.USERNAME, "john", "abcd").encode();
+        Assertions.assertThrows(BadRequestException.class, () -> UsersCursor.decode(encoded, UsersSortOrder.EMAIL));
+    }
+
+    @Test
+    void decodeRejectsInvalidValues() {
+        Assertions.assertThrows(BadRequestException.class, () -> UsersCursor.decode("not base64!", UsersSortOrder.USERNAME));
+        Assertions.assertThrows(BadRequestException.class, () -> UsersCursor.decode("dXNlcm5hbWU", UsersSortOrder.USERNAME));
+
+        String encoded = new UsersCursor(UsersSortOrder.CREATED_TIMESTAMP, "yesterday", "abcd").encode();
+        Assertions.assertThrows(BadRequestException.class, () -> UsersCursor.decode(encoded, UsersSortOrder.CREATED_TIMESTAMP));
+    }
+
+    @Test
+    void sortOrderFromParameter() {
+        assertThat(UsersSortOrder.fromParameter(null), is(UsersSortOrder.USERNAME));
+        assertThat(UsersSortOrder.fromParameter("createdTimestamp"), is(UsersSortOrder.CREATED_TIMESTAMP));
+        Assertions.assertThrows(BadRequestException.class, () -> UsersSortOrder.fromParameter("firstName"));
+    }
+}
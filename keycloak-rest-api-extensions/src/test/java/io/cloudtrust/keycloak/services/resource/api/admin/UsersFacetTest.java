@@ -0,0 +1,25 @@
+package io.cloudtrust.keycloak.services.resource.api.admin;
+
+import jakarta.ws.rs.BadRequestException;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.empty;
+
+class UsersFacetTest {
+    @Test
+    void fromParameter() {
+        assertThat(UsersFacet.fromParameter(null), empty());
+        assertThat(UsersFacet.fromParameter(""), empty());
+        assertThat(UsersFacet.fromParameter("enabled"), containsInAnyOrder(UsersFacet.ENABLED));
+        assertThat(UsersFacet.fromParameter("idpAlias, emailVerified,,enabled"),
+                containsInAnyOrder(UsersFacet.ENABLED, UsersFacet.EMAIL_VERIFIED, UsersFacet.IDP_ALIAS));
+    }
+
+    @Test
+    void unsupportedFacet() {
+        Assertions.assertThrows(BadRequestException.class, () -> UsersFacet.fromParameter("enabled,firstName"));
+    }
+}
@@ -0,0 +1,58 @@
+package io.cloudtrust.keycloak.services.resource.api.admin;
+
+import jakarta.ws.rs.BadRequestException;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.keycloak.representations.idm.UserRepresentation;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+
+class UsersFieldsTest {
+    @Test
+    void noFields() {
+        assertThat(UsersFields.fromParameter(null, UsersSortOrder.USERNAME), is(nullValue()));
+        assertThat(UsersFields.fromParameter(" ", UsersSortOrder.USERNAME), is(nullValue()));
+    }
+
+    @Test
+    void idAndSortFieldAreAlwaysSelected() {
+        UsersFields fields = UsersFields.fromParameter("enabled", UsersSortOrder.EMAIL);
+        assertThat(fields.getSelect(), is("u.id, u.email, u.enabled"));
+        assertThat(fields.getWidth(), is(3));
+        assertThat(fields.getAttributes(), empty());
+    }
+
+    @Test
+    void columnsOrderDoesNotDependOnTheParameter() {
+        assertThat(UsersFields.fromParameter("enabled, email,username", UsersSortOrder.USERNAME).getSelect(),
+                is(UsersFields.fromParameter("email,enabled", UsersSortOrder.USERNAME).getSelect()));
+    }
+
+    @Test
+    void attributes() {
+        UsersFields fields = UsersFields.fromParameter("attributes.phoneNumber,username,attributes.locale", UsersSortOrder.USERNAME);
+        assertThat(fields.getSelect(), is("u.id, u.username"));
+        assertThat(fields.getAttributes(), contains("phoneNumber", "locale"));
+    }
+
+    @Test
+    void unsupportedField() {
+        Assertions.assertThrows(BadRequestException.class, () -> UsersFields.fromParameter("id,password", UsersSortOrder.USERNAME));
+        Assertions.assertThrows(BadRequestException.class, () -> UsersFields.fromParameter("attributes.", UsersSortOrder.USERNAME));
+    }
+
+    @Test
+    void toRepresentation() {
+        UsersFields fields = UsersFields.fromParameter("enabled,createdTimestamp", UsersSortOrder.USERNAME);
+        UserRepresentation rep = fields.toRepresentation(new Object[]{"id1", "john", 12L, true});
+        assertThat(rep.getId(), is("id1"));
+        assertThat(rep.getUsername(), is("john"));
+        assertThat(rep.getCreatedTimestamp(), is(12L));
+        assertThat(rep.isEnabled(), is(true));
+        assertThat(rep.getEmail(), is(nullValue()));
+    }
+}
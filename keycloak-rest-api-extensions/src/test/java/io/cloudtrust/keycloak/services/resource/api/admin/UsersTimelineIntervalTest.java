@@ -0,0 +1,49 @@
+package io.cloudtrust.keycloak.services.resource.api.admin;
+
+import jakarta.ws.rs.BadRequestException;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+class UsersTimelineIntervalTest {
+    private static long millis(String instant) {
+        return Instant.parse(instant).toEpochMilli();
+    }
+
+    @Test
+    void fromParameter() {
+        assertThat(UsersTimelineInterval.fromParameter(null), is(UsersTimelineInterval.DAY));
+        assertThat(UsersTimelineInterval.fromParameter("week"), is(UsersTimelineInterval.WEEK));
+        assertThat(UsersTimelineInterval.fromParameter("month"), is(UsersTimelineInterval.MONTH));
+        Assertions.assertThrows(BadRequestException.class, () -> UsersTimelineInterval.fromParameter("year"));
+    }
+
+    @Test
+    void day() {
+        UsersTimelineInterval day = UsersTimelineInterval.DAY;
+        assertThat(day.floor(millis("2024-02-29T13:45:00Z")), is(millis("2024-02-29T00:00:00Z")));
+        assertThat(day.ceil(millis("2024-02-29T13:45:00Z")), is(millis("2024-03-01T00:00:00Z")));
+        assertThat(day.ceil(millis("2024-02-29T00:00:00Z")), is(millis("2024-02-29T00:00:00Z")));
+    }
+
+    @Test
+    void weeksStartOnMonday() {
+        UsersTimelineInterval week = UsersTimelineInterval.WEEK;
+        // Thursday
+        assertThat(week.floor(millis("2024-02-29T13:45:00Z")), is(millis("2024-02-26T00:00:00Z")));
+        assertThat(week.floor(millis("2024-02-26T00:00:00Z")), is(millis("2024-02-26T00:00:00Z")));
+        assertThat(week.next(millis("2024-02-26T00:00:00Z")), is(millis("2024-03-04T00:00:00Z")));
+    }
+
+    @Test
+    void months() {
+        UsersTimelineInterval month = UsersTimelineInterval.MONTH;
+        assertThat(month.floor(millis("2024-02-29T13:45:00Z")), is(millis("2024-02-01T00:00:00Z")));
+        assertThat(month.next(millis("2024-02-01T00:00:00Z")), is(millis("2024-03-01T00:00:00Z")));
+        assertThat(month.ceil(millis("2024-12-02T00:00:00Z")), is(millis("2025-01-01T00:00:00Z")));
+    }
+}
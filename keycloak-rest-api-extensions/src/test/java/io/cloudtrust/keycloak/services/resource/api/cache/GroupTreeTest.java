@@ -0,0 +1,35 @@
+package io.cloudtrust.keycloak.services.resource.api.cache;
+
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.jpa.entities.GroupEntity;
+
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+
+class GroupTreeTest {
+    private final GroupsCache.GroupTree tree = new GroupsCache.GroupTree(List.of(
+            new Object[]{"1", "top", GroupEntity.TOP_PARENT_ID},
+            new Object[]{"2", "level2", "1"},
+            new Object[]{"3", "level3", "2"},
+            new Object[]{"4", "other-level2", "1"},
+            new Object[]{"5", "other", GroupEntity.TOP_PARENT_ID}));
+
+    @Test
+    void getSubtree() {
+        assertThat(tree.getSubtree("1"), containsInAnyOrder("1", "2", "3", "4"));
+        assertThat(tree.getSubtree("2"), containsInAnyOrder("2", "3"));
+        assertThat(tree.getSubtree("5"), containsInAnyOrder("5"));
+        assertThat(tree.getSubtree("unknown"), containsInAnyOrder("unknown"));
+    }
+
+    @Test
+    void getPath() {
+        assertThat(tree.getPath("1"), is("/top"));
+        assertThat(tree.getPath("3"), is("/top/level2/level3"));
+        assertThat(tree.getPath("unknown"), is(nullValue()));
+    }
+}
@@ -0,0 +1,32 @@
+package io.cloudtrust.keycloak.services.resource.api.cache;
+
+import io.cloudtrust.keycloak.representations.idm.PasswordHashStatisticsRepresentation;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+
+class PasswordHashesCacheTest {
+    @Test
+    void countByAlgorithmAndIterations() {
+        List<PasswordHashStatisticsRepresentation> hashes = PasswordHashesCache.count(Stream.of(
+                "{\"hashIterations\":27500,\"algorithm\":\"pbkdf2-sha256\",\"additionalParameters\":{}}",
+                "{\"hashIterations\":210000,\"algorithm\":\"pbkdf2-sha512\",\"additionalParameters\":{}}",
+                "{\"hashIterations\":27500,\"algorithm\":\"pbkdf2-sha256\",\"additionalParameters\":{}}",
+                "{\"hashIterations\":1,\"algorithm\":\"ssha256\"}",
+                "{\"additionalParameters\":{\"algorithm\":[\"nested\"]},\"algorithm\":\"argon2\",\"hashIterations\":5}",
+                "{\"algorithm\":\"pbkdf2-sha256\",\"hashIterations\":\"lots\"}",
+                "not json"));
+
+        assertThat(hashes.stream().map(h -> h.getAlgorithm() + "/" + h.getHashIterations() + "=" + h.getCount()).toList(), contains(
+                "null/null=1",
+                "argon2/5=1",
+                "pbkdf2-sha256/null=1",
+                "pbkdf2-sha256/27500=2",
+                "pbkdf2-sha512/210000=1",
+                "ssha256/1=1"));
+    }
+}
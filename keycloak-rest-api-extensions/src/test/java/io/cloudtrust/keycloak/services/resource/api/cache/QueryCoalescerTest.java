@@ -0,0 +1,82 @@
+package io.cloudtrust.keycloak.services.resource.api.cache;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+class QueryCoalescerTest {
+    private static final String QUERY = "test";
+
+    @Test
+    void concurrentCallsShareOneExecution() throws Exception {
+        QueryCoalescer coalescer = new QueryCoalescer();
+        AtomicInteger executions = new AtomicInteger();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        CompletableFuture<String> first = CompletableFuture.supplyAsync(() -> coalescer.execute(QUERY, "realm", () -> {
+            executions.incrementAndGet();
+            started.countDown();
+            await(release);
+            return "result";
+        }));
+        assertThat(started.await(5, TimeUnit.SECONDS), is(true));
+        CompletableFuture<String> second = CompletableFuture.supplyAsync(() -> coalescer.execute(QUERY, "realm", () -> {
+            executions.incrementAndGet();
+            return "other";
+        }));
+        release.countDown();
+
+        assertThat(first.get(5, TimeUnit.SECONDS), is("result"));
+        assertThat(second.get(5, TimeUnit.SECONDS), is("result"));
+        assertThat(executions.get(), is(1));
+    }
+
+    @Test
+    void resultIsReusedDuringTheWindow() {
+        QueryCoalescer coalescer = new QueryCoalescer();
+        coalescer.setReuseMillis(TimeUnit.MINUTES.toMillis(1));
+        AtomicInteger executions = new AtomicInteger();
+
+        coalescer.execute(QUERY, "realm", executions::incrementAndGet);
+        assertThat(coalescer.execute(QUERY, "realm", executions::incrementAndGet), is(1));
+        assertThat(coalescer.execute(QUERY, "other", executions::incrementAndGet), is(2));
+        assertThat(coalescer.execute("other-query", "realm", executions::incrementAndGet), is(3));
+    }
+
+    @Test
+    void resultIsNotReusedWithoutWindow() {
+        QueryCoalescer coalescer = new QueryCoalescer();
+        coalescer.setReuseMillis(0);
+        AtomicInteger executions = new AtomicInteger();
+
+        coalescer.execute(QUERY, "realm", executions::incrementAndGet);
+        assertThat(coalescer.execute(QUERY, "realm", executions::incrementAndGet), is(2));
+    }
+
+    @Test
+    void failureIsNotReused() {
+        QueryCoalescer coalescer = new QueryCoalescer();
+        coalescer.setReuseMillis(TimeUnit.MINUTES.toMillis(1));
+
+        Assertions.assertThrows(IllegalStateException.class, () -> coalescer.execute(QUERY, "realm", () -> {
+            throw new IllegalStateException("failure");
+        }));
+        assertThat(coalescer.execute(QUERY, "realm", () -> "result"), is("result"));
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package io.cloudtrust.keycloak.services.resource.api.cache;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Set;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.empty;
+
+class RoleGraphTest {
+    // admin is included in composite, itself included in super-composite. cycle-a and cycle-b include each other.
+    private final RolesCache.RoleGraph graph = new RolesCache.RoleGraph(List.of(
+            new Object[]{"composite", "admin"},
+            new Object[]{"super-composite", "composite"},
+            new Object[]{"other-composite", "user"},
+            new Object[]{"cycle-a", "cycle-b"},
+            new Object[]{"cycle-b", "cycle-a"}),
+            List.of(
+                    new Object[]{"composite", "group1"},
+                    new Object[]{"user", "group2"},
+                    new Object[]{"admin", "group3"}));
+
+    @Test
+    void getEffectiveRoles() {
+        assertThat(graph.getEffectiveRoles(List.of("admin")), containsInAnyOrder("admin", "composite", "super-composite"));
+        assertThat(graph.getEffectiveRoles(List.of("admin", "user")), containsInAnyOrder("admin", "composite", "super-composite", "user", "other-composite"));
+        assertThat(graph.getEffectiveRoles(List.of("super-composite")), containsInAnyOrder("super-composite"));
+        assertThat(graph.getEffectiveRoles(List.of("cycle-a")), containsInAnyOrder("cycle-a", "cycle-b"));
+        assertThat(graph.getEffectiveRoles(List.of("unknown")), containsInAnyOrder("unknown"));
+    }
+
+    @Test
+    void getGroups() {
+        assertThat(graph.getGroups(graph.getEffectiveRoles(List.of("admin"))), containsInAnyOrder("group1", "group3"));
+        assertThat(graph.getGroups(Set.of("other-composite")), empty());
+    }
+}
@@ -0,0 +1,51 @@
+package io.cloudtrust.keycloak.services.resource.api.cache;
+
+import org.junit.jupiter.api.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+
+class UsersCountCacheTest {
+    private static final String REALM = "realm";
+
+    @Test
+    void getCachedCount() {
+        UsersCountCache cache = new UsersCountCache();
+        assertThat(cache.get(REALM, "enabled=true"), is(nullValue()));
+
+        cache.put(REALM, "enabled=true", 12, cache.getGeneration(REALM));
+        assertThat(cache.get(REALM, "enabled=true"), is(12));
+        assertThat(cache.get(REALM, "enabled=false"), is(nullValue()));
+        assertThat(cache.get("other", "enabled=true"), is(nullValue()));
+    }
+
+    @Test
+    void invalidateRealm() {
+        UsersCountCache cache = new UsersCountCache();
+        cache.put(REALM, "enabled=true", 12, cache.getGeneration(REALM));
+        cache.put("other", "enabled=true", 5, cache.getGeneration("other"));
+
+        cache.invalidate(REALM);
+        assertThat(cache.get(REALM, "enabled=true"), is(nullValue()));
+        assertThat(cache.get("other", "enabled=true"), is(5));
+    }
+
+    @Test
+    void countStartedBeforeInvalidationIsNotCached() {
+        UsersCountCache cache = new UsersCountCache();
+        long generation = cache.getGeneration(REALM);
+        cache.invalidate(REALM);
+
+        cache.put(REALM, "enabled=true", 12, generation);
+        assertThat(cache.get(REALM, "enabled=true"), is(nullValue()));
+    }
+
+    @Test
+    void staleCountIsIgnored() {
+        UsersCountCache cache = new UsersCountCache();
+        cache.setMaxAgeMillis(-1);
+        cache.put(REALM, "enabled=true", 12, cache.getGeneration(REALM));
+        assertThat(cache.get(REALM, "enabled=true"), is(nullValue()));
+    }
+}
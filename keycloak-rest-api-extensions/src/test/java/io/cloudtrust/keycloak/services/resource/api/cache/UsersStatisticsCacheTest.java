@@ -0,0 +1,70 @@
+package io.cloudtrust.keycloak.services.resource.api.cache;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.is;
+
+class UsersStatisticsCacheTest {
+    private static final String REALM = "realm";
+
+    private static UsersStatisticsCache.Counters counters(long computed) {
+        return new UsersStatisticsCache.Counters(computed, 10, 2, 4, Map.of("password", 8L, "otp", 4L));
+    }
+
+    @Test
+    void createdUsersAreCounted() {
+        UsersStatisticsCache cache = new UsersStatisticsCache();
+        UsersStatisticsCache.Counters counters = counters(100);
+        cache.put(REALM, counters);
+
+        cache.addUser(REALM, 200, false, List.of("password", "otp"));
+        cache.addUser(REALM, 200, true, List.of("password"));
+        var users = counters.toUsersStatistics();
+        assertThat(users.getTotal(), is(12L));
+        assertThat(users.getDisabled(), is(3L));
+        assertThat(users.getInactive(), is(7L));
+        assertThat(counters.toCredentialsStatistics(), is(Map.of("password", 10L, "otp", 5L)));
+        assertThat(cache.getRealmsToReconcile(200), is(empty()));
+    }
+
+    @Test
+    void userCreatedWhileCountingMarksTheRealmDirty() {
+        UsersStatisticsCache cache = new UsersStatisticsCache();
+        UsersStatisticsCache.Counters counters = counters(200);
+        cache.put(REALM, counters);
+
+        cache.addUser(REALM, 100, true, List.of("password"));
+        assertThat(counters.toUsersStatistics().getTotal(), is(10L));
+        assertThat(cache.getRealmsToReconcile(200), contains(REALM));
+        // Dirty flag is consumed by the reconciliation
+        assertThat(cache.getRealmsToReconcile(200), is(empty()));
+    }
+
+    @Test
+    void oldCountersAreReconciled() {
+        UsersStatisticsCache cache = new UsersStatisticsCache();
+        cache.setMaxAgeMillis(1000);
+        cache.put(REALM, counters(100));
+
+        assertThat(cache.getRealmsToReconcile(1000), is(empty()));
+        assertThat(cache.getRealmsToReconcile(1200), contains(REALM));
+    }
+
+    @Test
+    void onlyCachedRealmsAreMarkedDirty() {
+        UsersStatisticsCache cache = new UsersStatisticsCache();
+        cache.markDirty(REALM);
+        cache.put(REALM, counters(100));
+        assertThat(cache.getRealmsToReconcile(100), is(empty()));
+
+        cache.markDirty(REALM);
+        cache.invalidate(REALM);
+        assertThat(cache.getRealmsToReconcile(100), is(empty()));
+    }
+}
@@ -0,0 +1,69 @@
+package io.cloudtrust.keycloak.services.resource.api.cache;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.function.BiFunction;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+
+class UsersTimelineCacheTest {
+    private static final String REALM = "realm";
+    private static final String DAY = "DAY";
+
+    private final List<String> loads = new ArrayList<>();
+
+    /**
+     * One user created in each bucket of width 10
+     */
+    private final BiFunction<Long, Long, NavigableMap<Long, Long>> loader = (from, to) -> {
+        loads.add(from + "-" + to);
+        NavigableMap<Long, Long> res = new TreeMap<>();
+        for (long start = from; start < to; start += 10) {
+            res.put(start, 1L);
+        }
+        return res;
+    };
+
+    @Test
+    void closedBucketsAreLoadedOnce() {
+        UsersTimelineCache cache = new UsersTimelineCache();
+        assertThat(cache.getClosedBuckets(REALM, DAY, 0, 30, loader), is(Map.of(0L, 1L, 10L, 1L, 20L, 1L)));
+        assertThat(cache.getClosedBuckets(REALM, DAY, 10, 30, loader), is(Map.of(10L, 1L, 20L, 1L)));
+        assertThat(loads, contains("0-30"));
+    }
+
+    @Test
+    void onlyNewlyClosedBucketsAreLoaded() {
+        UsersTimelineCache cache = new UsersTimelineCache();
+        cache.getClosedBuckets(REALM, DAY, 0, 30, loader);
+        assertThat(cache.getClosedBuckets(REALM, DAY, 10, 50, loader), is(Map.of(10L, 1L, 20L, 1L, 30L, 1L, 40L, 1L)));
+        assertThat(loads, contains("0-30", "30-50"));
+    }
+
+    @Test
+    void rangeStartingBeforeTheCachedOneIsLoaded() {
+        UsersTimelineCache cache = new UsersTimelineCache();
+        cache.getClosedBuckets(REALM, DAY, 20, 30, loader);
+        cache.getClosedBuckets(REALM, DAY, 0, 30, loader);
+        cache.getClosedBuckets(REALM, "WEEK", 0, 30, loader);
+        assertThat(loads, contains("20-30", "0-30", "0-30"));
+    }
+
+    @Test
+    void oldOrInvalidatedRangesAreReloaded() {
+        UsersTimelineCache cache = new UsersTimelineCache();
+        cache.getClosedBuckets(REALM, DAY, 0, 30, loader);
+        cache.invalidate(REALM);
+        cache.getClosedBuckets(REALM, DAY, 0, 30, loader);
+        cache.setMaxAgeMillis(-1);
+        cache.getClosedBuckets(REALM, DAY, 0, 30, loader);
+        assertThat(loads, contains("0-30", "0-30", "0-30"));
+    }
+}
@@ -0,0 +1,103 @@
+package io.cloudtrust.keycloak.services.resource.api.index;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+
+class UsersSearchIndexTest {
+    private UsersSearchIndex index;
+
+    @BeforeEach
+    void setup() {
+        index = new UsersSearchIndex();
+        index.put("1", "jdoe", "john.doe@example.com", "John", "Doe");
+        index.put("2", "jsmith", "jane.smith@example.com", "Jane", "Smith");
+        index.put("3", "eloise", "eloise@example.com", "Éloïse", "Müller");
+    }
+
+    @Test
+    void fieldsAreNormalizedLikeTheDatabaseSearch() {
+        assertThat(UsersSearchIndex.fields("jdoe", null, "Éloïse", "MÜLLER"), is(new String[]{"jdoe", "", "éloïse", "müller"}));
+        assertThat(UsersSearchIndex.normalize("ÉLOÏ*"), is("éloï*"));
+    }
+
+    @Test
+    void searchModes() {
+        // Prefix (default)
+        assertThat(index.search("jan", 10), containsInAnyOrder("2"));
+        assertThat(index.search("smi*", 10), containsInAnyOrder("2"));
+        assertThat(index.search("mith", 10), is(empty()));
+        // Infix
+        assertThat(index.search("*mith*", 10), containsInAnyOrder("2"));
+        assertThat(index.search("*example*", 10), containsInAnyOrder("1", "2", "3"));
+        // Exact
+        assertThat(index.search("\"doe\"", 10), containsInAnyOrder("1"));
+        assertThat(index.search("\"do\"", 10), is(nullValue()));
+    }
+
+    @Test
+    void searchIgnoresCaseButNotAccents() {
+        assertThat(index.search("*MÜLLER*", 10), containsInAnyOrder("3"));
+        assertThat(index.search("ÉLOÏ", 10), containsInAnyOrder("3"));
+        assertThat(index.search("*muller*", 10), is(empty()));
+    }
+
+    @Test
+    void allTokensMustMatch() {
+        assertThat(index.search("*example* *mith*", 10), containsInAnyOrder("2"));
+        assertThat(index.search("jdo *example*", 10), containsInAnyOrder("1"));
+        assertThat(index.search("jdo *smith*", 10), is(empty()));
+    }
+
+    @Test
+    void unresolvableSearches() {
+        // Too short for a trigram
+        assertThat(index.search("jd", 10), is(nullValue()));
+        // SQL wildcards
+        assertThat(index.search("*j%n*", 10), is(nullValue()));
+        // Too many users
+        assertThat(index.search("*example*", 2), is(nullValue()));
+    }
+
+    @Test
+    void updateAndRemove() {
+        index.put("2", "jsmith", "jane.jones@example.com", "Jane", "Jones");
+        assertThat(index.search("*smith*", 10), containsInAnyOrder("2"));
+        assertThat(index.search("*smith@*", 10), is(empty()));
+        assertThat(index.search("jones", 10), containsInAnyOrder("2"));
+
+        index.remove("2");
+        assertThat(index.search("jones", 10), is(empty()));
+        assertThat(index.size(), is(2));
+
+        // The position of a removed user is reused
+        index.put("4", "jjones", "jack.jones@example.com", "Jack", "Jones");
+        assertThat(index.search("jones", 10), containsInAnyOrder("4"));
+        assertThat(index.search("*example*", 10), containsInAnyOrder("1", "3", "4"));
+    }
+
+    @Test
+    void snapshot() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            index.write(out);
+        }
+        UsersSearchIndex read = UsersSearchIndex.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+
+        assertThat(read.size(), is(3));
+        assertThat(read.isComplete(), is(false));
+        assertThat(read.search("*müller*", 10), containsInAnyOrder("3"));
+        assertThat(read.getUsers().get("1"), is(UsersSearchIndex.fields("jdoe", "john.doe@example.com", "John", "Doe")));
+    }
+}